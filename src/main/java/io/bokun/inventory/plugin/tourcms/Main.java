@@ -2,6 +2,14 @@ package io.bokun.inventory.plugin.tourcms;
 
 import com.google.inject.*;
 import com.google.inject.name.*;
+import io.bokun.inventory.plugin.tourcms.api.TourCmsClientRegistry;
+import io.bokun.inventory.plugin.tourcms.service.AvailabilityCache;
+import io.bokun.inventory.plugin.tourcms.service.AvailabilityChangeFeed;
+import io.bokun.inventory.plugin.tourcms.service.AvailabilityWarmer;
+import io.bokun.inventory.plugin.tourcms.service.CacheSnapshot;
+import io.bokun.inventory.plugin.tourcms.service.CatalogCache;
+import io.bokun.inventory.plugin.tourcms.service.ProductDescriptionCache;
+import io.bokun.inventory.plugin.tourcms.service.ProductRateCache;
 import io.bokun.inventory.plugin.tourcms.service.RestService;
 import io.bokun.inventory.plugin.tourcms.util.AppLogger;
 import io.undertow.*;
@@ -45,6 +53,10 @@ public class Main {
         Injector injector = Guice.createInjector(new GuiceInitializer(port));
         Main server = injector.getInstance(Main.class);
 
+        injector.getInstance(CacheSnapshot.class).restore();
+
+        TourCmsClientRegistry.warmUp();
+
         Undertow.builder()
                 .addHttpListener(server.port, DEFAULT_HOST)
                 .setHandler(
@@ -60,10 +72,12 @@ public class Main {
                                     }
                                 })
                                 .get("/plugin/definition", server.restService::getDefinition)
-                                .post("/product/search", new BlockingHandler(server.restService::searchProducts))
-                                .post("/product/getById", new BlockingHandler(server.restService::getProductById))
-                                .post("/product/getAvailable", new BlockingHandler(server.restService::getAvailableProducts))
-                                .post("/product/getAvailability", new BlockingHandler(server.restService::getProductAvailability))
+                                .get("/metrics", server.restService::getMetrics)
+                                .post("/cache/invalidate", server.restService::invalidateCache)
+                                .post("/product/search", server.restService::searchProducts)
+                                .post("/product/getById", server.restService::getProductById)
+                                .post("/product/getAvailable", server.restService::getAvailableProducts)
+                                .post("/product/getAvailability", server.restService::getProductAvailability)
 
                                 .post("/booking/reserve", new BlockingHandler(server.restService::createReservation))
                                 .post("/booking/cancelReserve", new BlockingHandler(server.restService::cancelReservation))
@@ -94,6 +108,13 @@ public class Main {
                     .annotatedWith(Names.named("TOURCMS_PLUGIN_PORT"))
                     .toInstance(port);
 
+            binder.bind(ProductDescriptionCache.class).in(SINGLETON);
+            binder.bind(AvailabilityCache.class).in(SINGLETON);
+            binder.bind(ProductRateCache.class).in(SINGLETON);
+            binder.bind(AvailabilityWarmer.class).in(SINGLETON);
+            binder.bind(CacheSnapshot.class).in(SINGLETON);
+            binder.bind(CatalogCache.class).in(SINGLETON);
+            binder.bind(AvailabilityChangeFeed.class).in(SINGLETON);
             binder.bind(RestService.class).in(SINGLETON);
             binder.bind(Main.class).in(SINGLETON);
         }
@@ -3,14 +3,8 @@ package io.bokun.inventory.plugin.tourcms.api;
 import io.bokun.inventory.plugin.tourcms.util.AppLogger;
 import okhttp3.*;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.time.Instant;
-import java.time.ZoneOffset;
-import java.time.format.DateTimeFormatter;
-import java.util.Base64;
 
 public class BokunClient {
     private static final String TAG = "BokunClient";
@@ -30,17 +24,7 @@ public class BokunClient {
     private String generateSignature(String method, String endpoint, String date) {
         try {
             String message = date + accessKey + method + endpoint;
-            AppLogger.info(TAG, "Message to sign: " + message);
-
-            SecretKeySpec signingKey = new SecretKeySpec(secretKey.getBytes(StandardCharsets.UTF_8), "HmacSHA1");
-
-            Mac mac = Mac.getInstance("HmacSHA1");
-            mac.init(signingKey);
-            byte[] rawHmac = mac.doFinal(message.getBytes(StandardCharsets.UTF_8));
-
-            String signature = Base64.getEncoder().encodeToString(rawHmac);
-            AppLogger.info(TAG, "Generated Signature: " + signature);
-            return signature;
+            return RequestSigner.sign(RequestSigner.HMAC_SHA1, secretKey, message);
         } catch (Exception e) {
             AppLogger.error(TAG, "Failed to generate signature", e);
             return null;
@@ -51,7 +35,7 @@ public class BokunClient {
         String fullUrl = BASE_URL + endpoint;
         AppLogger.info(TAG, String.format("Calling API: %s %s", method, fullUrl));
 
-        String date = Instant.now().atZone(ZoneOffset.UTC).format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+        String date = RequestSigner.formatBokunDate(Instant.now());
 
         String signature = generateSignature(method, endpoint, date);
         if (signature == null) {
@@ -67,8 +51,6 @@ public class BokunClient {
                 .addHeader("Content-Type", "application/json");
 
         AppLogger.info(TAG, "X-Bokun-Date: " + date);
-        AppLogger.info(TAG, "X-Bokun-AccessKey: " + accessKey);
-        AppLogger.info(TAG, "X-Bokun-Signature: " + signature);
 
         if (body != null) {
             AppLogger.info(TAG, "Request Body: " + body.toString());
@@ -0,0 +1,210 @@
+package io.bokun.inventory.plugin.tourcms.api;
+
+import io.bokun.inventory.plugin.tourcms.util.AppLogger;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Circuit breaker of one TourCMS endpoint, shared by all channels.
+ * <p>
+ * The last {@code TOURCMS_BREAKER_WINDOW} attempts are kept. Once at least {@code TOURCMS_BREAKER_MIN_CALLS}
+ * are recorded, the breaker opens when the failure rate (connection errors, timeouts, 5xx) or the rate of calls
+ * slower than {@code TOURCMS_BREAKER_SLOW_CALL_MS} reaches its threshold. While open, calls are rejected without
+ * touching the network. After {@code TOURCMS_BREAKER_OPEN_MS} a few probe calls are let through: if they all
+ * succeed the breaker closes, otherwise it opens again.
+ */
+public class CircuitBreaker {
+
+    private static final String TAG = "CircuitBreaker";
+
+    private static final int WINDOW = System.getenv("TOURCMS_BREAKER_WINDOW") != null
+            ? Integer.parseInt(System.getenv("TOURCMS_BREAKER_WINDOW"))
+            : 50;
+
+    private static final int MIN_CALLS = System.getenv("TOURCMS_BREAKER_MIN_CALLS") != null
+            ? Integer.parseInt(System.getenv("TOURCMS_BREAKER_MIN_CALLS"))
+            : 20;
+
+    private static final int FAILURE_RATE_PERCENT = System.getenv("TOURCMS_BREAKER_FAILURE_RATE") != null
+            ? Integer.parseInt(System.getenv("TOURCMS_BREAKER_FAILURE_RATE"))
+            : 50;
+
+    private static final int SLOW_CALL_RATE_PERCENT = System.getenv("TOURCMS_BREAKER_SLOW_CALL_RATE") != null
+            ? Integer.parseInt(System.getenv("TOURCMS_BREAKER_SLOW_CALL_RATE"))
+            : 80;
+
+    private static final long SLOW_CALL_MILLIS = System.getenv("TOURCMS_BREAKER_SLOW_CALL_MS") != null
+            ? Long.parseLong(System.getenv("TOURCMS_BREAKER_SLOW_CALL_MS"))
+            : 10000L;
+
+    private static final long OPEN_MILLIS = System.getenv("TOURCMS_BREAKER_OPEN_MS") != null
+            ? Long.parseLong(System.getenv("TOURCMS_BREAKER_OPEN_MS"))
+            : 30000L;
+
+    private static final int HALF_OPEN_PROBES = System.getenv("TOURCMS_BREAKER_HALF_OPEN_PROBES") != null
+            ? Integer.parseInt(System.getenv("TOURCMS_BREAKER_HALF_OPEN_PROBES"))
+            : 3;
+
+    private static final byte FAILED = 1;
+    private static final byte SLOW = 2;
+
+    private static final ConcurrentMap<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /**
+     * Handed out for every allowed call and given back with its outcome, so probe results are told apart
+     * from late results of calls started before the breaker opened.
+     */
+    static final class Permit {
+        private static final Permit REGULAR = new Permit(false);
+
+        private final boolean probe;
+
+        private Permit(boolean probe) {
+            this.probe = probe;
+        }
+    }
+
+    private final String name;
+    private final byte[] outcomes = new byte[WINDOW];
+    private State state = State.CLOSED;
+    private int recorded;
+    private int next;
+    private int failures;
+    private int slowCalls;
+    private long openedAt;
+    private int probesInFlight;
+    private int probeSuccesses;
+    private long rejected;
+
+    private CircuitBreaker(String name) {
+        this.name = name;
+    }
+
+    static CircuitBreaker forEndpoint(String endpoint) {
+        return BREAKERS.computeIfAbsent(endpoint, CircuitBreaker::new);
+    }
+
+    /**
+     * @return state and counters of every breaker, for the metrics route
+     */
+    public static List<Map<String, Object>> metrics() {
+        List<Map<String, Object>> metrics = new ArrayList<>();
+        new TreeMap<>(BREAKERS).values().forEach(breaker -> metrics.add(breaker.toMetrics()));
+        return metrics;
+    }
+
+    private synchronized Map<String, Object> toMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("endpoint", name);
+        metrics.put("state", state.name());
+        metrics.put("calls", recorded);
+        metrics.put("failureRate", recorded > 0 ? failures * 100 / recorded : 0);
+        metrics.put("slowCallRate", recorded > 0 ? slowCalls * 100 / recorded : 0);
+        metrics.put("rejected", rejected);
+        return metrics;
+    }
+
+    /**
+     * @return a permit to call TourCMS, or null while the breaker rejects calls
+     */
+    synchronized Permit tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < OPEN_MILLIS) {
+                rejected++;
+                return null;
+            }
+            transitionTo(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesInFlight >= HALF_OPEN_PROBES) {
+                rejected++;
+                return null;
+            }
+            probesInFlight++;
+            return new Permit(true);
+        }
+        return Permit.REGULAR;
+    }
+
+    synchronized long retryAfterMillis() {
+        return state == State.OPEN ? Math.max(0, openedAt + OPEN_MILLIS - System.currentTimeMillis()) : 0;
+    }
+
+    synchronized void onSuccess(Permit permit, long millis) {
+        record(permit, false, millis >= SLOW_CALL_MILLIS);
+    }
+
+    synchronized void onFailure(Permit permit, long millis) {
+        record(permit, true, millis >= SLOW_CALL_MILLIS);
+    }
+
+    /**
+     * The call didn't tell anything about TourCMS health (cancelled, throttled, never sent).
+     */
+    synchronized void onIgnored(Permit permit) {
+        if (permit.probe && state == State.HALF_OPEN) {
+            probesInFlight--;
+        }
+    }
+
+    private void record(Permit permit, boolean failed, boolean slow) {
+        if (permit.probe) {
+            if (state != State.HALF_OPEN) {
+                return;
+            }
+            probesInFlight--;
+            if (failed || slow) {
+                transitionTo(State.OPEN);
+            } else if (++probeSuccesses >= HALF_OPEN_PROBES) {
+                transitionTo(State.CLOSED);
+            }
+            return;
+        }
+        if (state != State.CLOSED) {
+            // Late result of a call started before the breaker opened
+            return;
+        }
+
+        byte outcome = (byte) ((failed ? FAILED : 0) | (slow ? SLOW : 0));
+        if (recorded == outcomes.length) {
+            byte evicted = outcomes[next];
+            failures -= evicted & FAILED;
+            slowCalls -= (evicted & SLOW) >> 1;
+        } else {
+            recorded++;
+        }
+        outcomes[next] = outcome;
+        next = (next + 1) % outcomes.length;
+        failures += outcome & FAILED;
+        slowCalls += (outcome & SLOW) >> 1;
+
+        if (recorded >= MIN_CALLS
+                && (failures * 100 >= FAILURE_RATE_PERCENT * recorded || slowCalls * 100 >= SLOW_CALL_RATE_PERCENT * recorded)) {
+            transitionTo(State.OPEN);
+        }
+    }
+
+    private void transitionTo(State newState) {
+        AppLogger.warn(TAG, String.format("%s: %s -> %s (calls: %d, failures: %d, slow: %d)", name, state, newState, recorded, failures, slowCalls));
+        state = newState;
+        probesInFlight = 0;
+        probeSuccesses = 0;
+        if (newState == State.OPEN) {
+            openedAt = System.currentTimeMillis();
+        } else if (newState == State.CLOSED) {
+            Arrays.fill(outcomes, (byte) 0);
+            recorded = 0;
+            next = 0;
+            failures = 0;
+            slowCalls = 0;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package io.bokun.inventory.plugin.tourcms.api;
+
+/**
+ * Thrown without calling TourCMS while the circuit breaker of the endpoint is open.
+ */
+public class CircuitOpenException extends TourCmsUnavailableException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CircuitOpenException(String message, long retryAfterMillis) {
+        super(message, retryAfterMillis);
+    }
+}
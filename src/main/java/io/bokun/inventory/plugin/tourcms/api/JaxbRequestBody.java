@@ -0,0 +1,95 @@
+package io.bokun.inventory.plugin.tourcms.api;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Request body of a JAXB model as compact XML. The model is marshalled once, up front, so the request carries a
+ * Content-Length instead of going out chunked, and is written as is when OkHttp retries it.
+ * <p>
+ * {@link JAXBContext} instances are created once per bound class, and marshallers are pooled,
+ * since neither is cheap to build and marshallers are not thread-safe.
+ */
+class JaxbRequestBody extends RequestBody {
+
+    private static final MediaType XML = MediaType.parse("application/xml");
+    private static final int MAX_POOLED_MARSHALLERS = 16;
+
+    private static final ConcurrentMap<Class<?>, JAXBContext> CONTEXTS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<Class<?>, BlockingQueue<Marshaller>> MARSHALLERS = new ConcurrentHashMap<>();
+
+    private final Object value;
+    private final JAXBContext context;
+    private final byte[] xml;
+
+    JaxbRequestBody(Object value) throws JAXBException {
+        this.value = value;
+        this.context = context(value.getClass());
+        this.xml = marshal();
+    }
+
+    private static JAXBContext context(Class<?> type) throws JAXBException {
+        JAXBContext context = CONTEXTS.get(type);
+        if (context == null) {
+            JAXBContext created = JAXBContext.newInstance(type);
+            context = CONTEXTS.putIfAbsent(type, created);
+            if (context == null) {
+                context = created;
+            }
+        }
+        return context;
+    }
+
+    private Marshaller acquire() throws JAXBException {
+        Marshaller marshaller = MARSHALLERS.computeIfAbsent(value.getClass(), k -> new ArrayBlockingQueue<>(MAX_POOLED_MARSHALLERS)).poll();
+        if (marshaller == null) {
+            marshaller = context.createMarshaller();
+            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.FALSE);
+            marshaller.setProperty(Marshaller.JAXB_ENCODING, StandardCharsets.UTF_8.name());
+        }
+        return marshaller;
+    }
+
+    private void release(Marshaller marshaller) {
+        // Dropped when the pool is full
+        MARSHALLERS.get(value.getClass()).offer(marshaller);
+    }
+
+    @Override
+    public MediaType contentType() {
+        return XML;
+    }
+
+    @Override
+    public long contentLength() {
+        return xml.length;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        sink.write(xml);
+    }
+
+    private byte[] marshal() throws JAXBException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        Marshaller marshaller = acquire();
+        try {
+            marshaller.marshal(value, out);
+        } finally {
+            release(marshaller);
+        }
+        return out.toByteArray();
+    }
+}
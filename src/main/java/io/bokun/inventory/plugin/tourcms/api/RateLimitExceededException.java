@@ -0,0 +1,14 @@
+package io.bokun.inventory.plugin.tourcms.api;
+
+/**
+ * Thrown when a TourCMS call can't be made within the rate limiter's wait budget, or TourCMS itself
+ * answered with a throttling status.
+ */
+public class RateLimitExceededException extends TourCmsUnavailableException {
+
+    private static final long serialVersionUID = 1L;
+
+    public RateLimitExceededException(String message, long retryAfterMillis) {
+        super(message, retryAfterMillis);
+    }
+}
@@ -0,0 +1,76 @@
+package io.bokun.inventory.plugin.tourcms.api;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * HMAC request signing shared by {@link TourCmsClient} and {@link BokunClient}.
+ * <p>
+ * An initialised {@link Mac} is kept per thread for each (algorithm, key) pair, so signing an outbound
+ * call is a single digest instead of a provider lookup plus key setup. Date formatters are immutable
+ * and shared.
+ */
+public final class RequestSigner {
+
+    public static final String HMAC_SHA256 = "HmacSHA256";
+    public static final String HMAC_SHA1 = "HmacSHA1";
+
+    private static final DateTimeFormatter TOURCMS_DATE_FORMAT = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.ENGLISH)
+            .withZone(ZoneId.of("GMT"));
+
+    private static final DateTimeFormatter BOKUN_DATE_FORMAT = DateTimeFormatter
+            .ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneOffset.UTC);
+
+    private static final ThreadLocal<Map<String, Mac>> MACS = ThreadLocal.withInitial(HashMap::new);
+
+    private RequestSigner() {
+    }
+
+    /**
+     * @return Base64 encoded HMAC of the message
+     */
+    public static String sign(String algorithm, String key, String message) throws NoSuchAlgorithmException, InvalidKeyException {
+        byte[] digest = mac(algorithm, key).doFinal(message.getBytes(StandardCharsets.UTF_8));
+        return Base64.getEncoder().encodeToString(digest);
+    }
+
+    private static Mac mac(String algorithm, String key) throws NoSuchAlgorithmException, InvalidKeyException {
+        Map<String, Mac> macs = MACS.get();
+        String cacheKey = algorithm + ":" + key;
+        Mac mac = macs.get(cacheKey);
+        if (mac == null) {
+            mac = Mac.getInstance(algorithm);
+            mac.init(new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), algorithm));
+            macs.put(cacheKey, mac);
+        }
+        // doFinal resets the Mac, so it is ready for the next message with the same key
+        return mac;
+    }
+
+    /**
+     * @return date in the x-tourcms-date header format, e.g. "Mon, 12 May 2025 08:30:00 GMT"
+     */
+    public static String formatTourCmsDate(long epochMillis) {
+        return TOURCMS_DATE_FORMAT.format(Instant.ofEpochMilli(epochMillis));
+    }
+
+    /**
+     * @return date in the X-Bokun-Date header format, e.g. "2025-05-12 08:30:00"
+     */
+    public static String formatBokunDate(Instant instant) {
+        return BOKUN_DATE_FORMAT.format(instant);
+    }
+}
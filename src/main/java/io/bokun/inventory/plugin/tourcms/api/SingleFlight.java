@@ -0,0 +1,104 @@
+package io.bokun.inventory.plugin.tourcms.api;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical calls that are in flight at the same time: the first caller starts the call, later
+ * callers with the same key get the same result. Nothing is kept once the call completes.
+ * <p>
+ * Every caller gets its own future. Cancelling it only detaches that caller; the shared call is cancelled
+ * when the last caller has gone.
+ */
+class SingleFlight<V> {
+
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+    CompletableFuture<V> join(String key, Supplier<CompletableFuture<V>> call) {
+        while (true) {
+            Flight flight = flights.get(key);
+            if (flight == null) {
+                Flight created = new Flight(key);
+                flight = flights.putIfAbsent(key, created);
+                if (flight == null) {
+                    CompletableFuture<V> subscriber = created.subscribe();
+                    created.start(call);
+                    return subscriber;
+                }
+            }
+
+            CompletableFuture<V> subscriber = flight.subscribe();
+            if (subscriber != null) {
+                return subscriber;
+            }
+            // Every caller of that flight cancelled just now, start a fresh one
+            flights.remove(key, flight);
+        }
+    }
+
+    private class Flight {
+        private final String key;
+        private final CompletableFuture<V> result = new CompletableFuture<>();
+        private volatile CompletableFuture<V> upstream;
+        private int subscribers;
+
+        Flight(String key) {
+            this.key = key;
+            result.whenComplete((value, error) -> flights.remove(key, this));
+        }
+
+        void start(Supplier<CompletableFuture<V>> call) {
+            try {
+                upstream = call.get();
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+                return;
+            }
+            upstream.whenComplete((value, error) -> {
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(value);
+                }
+            });
+            if (result.isCancelled()) {
+                upstream.cancel(true);
+            }
+        }
+
+        synchronized CompletableFuture<V> subscribe() {
+            if (result.isCancelled()) {
+                return null;
+            }
+            subscribers++;
+
+            CompletableFuture<V> subscriber = new CompletableFuture<>();
+            result.whenComplete((value, error) -> {
+                if (error != null) {
+                    subscriber.completeExceptionally(error);
+                } else {
+                    subscriber.complete(value);
+                }
+            });
+            subscriber.whenComplete((value, error) -> {
+                if (subscriber.isCancelled()) {
+                    unsubscribe();
+                }
+            });
+            return subscriber;
+        }
+
+        private synchronized void unsubscribe() {
+            if (--subscribers == 0 && !result.isDone()) {
+                result.cancel(true);
+                flights.remove(key, this);
+                CompletableFuture<V> call = upstream;
+                if (call != null) {
+                    call.cancel(true);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package io.bokun.inventory.plugin.tourcms.api;
+
+import io.bokun.inventory.plugin.tourcms.util.AppLogger;
+import okhttp3.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One logical TourCMS call: circuit breaker, rate limiting, the HTTP attempts (retries and an optional hedge)
+ * and decoding.
+ * <p>
+ * Only failures before any of the body was decoded are retried (connection errors, timeouts, 5xx), so a
+ * streaming reader never sees a departure twice. The first successful attempt completes the future and
+ * the others are cancelled; cancelling the future cancels every attempt.
+ */
+class TourCmsCall<T> {
+
+    private static final String TAG = "TourCmsCall";
+
+    enum Retry {
+        NEVER,
+        ON_TRANSIENT_ERROR,
+        WITH_HEDGING
+    }
+
+    @FunctionalInterface
+    interface RequestFactory {
+        Request build() throws IOException, NoSuchAlgorithmException, InvalidKeyException;
+    }
+
+    @FunctionalInterface
+    interface ResponseReader<T> {
+        T read(InputStream xmlStream) throws IOException;
+    }
+
+    private final OkHttpClient client;
+    private final TourCmsRateLimiter rateLimiter;
+    private final CircuitBreaker breaker;
+    private final String endpoint;
+    private final RequestFactory requestFactory;
+    private final String errorMessage;
+    private final ResponseReader<T> reader;
+    private final Retry retry;
+
+    private final CompletableFuture<T> future = new CompletableFuture<>();
+    private final Set<Call> calls = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger attempts = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    TourCmsCall(OkHttpClient client, TourCmsRateLimiter rateLimiter, String endpoint, RequestFactory requestFactory,
+                String errorMessage, ResponseReader<T> reader, Retry retry) {
+        this.client = client;
+        this.rateLimiter = rateLimiter;
+        this.breaker = CircuitBreaker.forEndpoint(endpoint);
+        this.endpoint = endpoint;
+        this.requestFactory = requestFactory;
+        this.errorMessage = errorMessage;
+        this.reader = reader;
+        this.retry = retry;
+    }
+
+    CompletableFuture<T> start() {
+        future.whenComplete((result, error) -> calls.forEach(Call::cancel));
+        if (retry != Retry.NEVER) {
+            TourCmsRetryPolicy.onRequest();
+        }
+
+        launch(0);
+
+        if (retry == Retry.WITH_HEDGING && TourCmsRetryPolicy.HEDGE_ENABLED) {
+            long hedgeDelay = TourCmsRetryPolicy.hedgeDelayMillis(endpoint);
+            if (hedgeDelay >= 0) {
+                TourCmsRetryPolicy.schedule(() -> {
+                    if (!future.isDone() && TourCmsRetryPolicy.tryAcquire()) {
+                        AppLogger.info(TAG, String.format("Hedging %s after %d ms", endpoint, hedgeDelay));
+                        launch(0);
+                    }
+                }, hedgeDelay);
+            }
+        }
+        return future;
+    }
+
+    private void launch(long delayMillis) {
+        inFlight.incrementAndGet();
+        attempts.incrementAndGet();
+        if (delayMillis > 0) {
+            TourCmsRetryPolicy.schedule(this::acquireAndSend, delayMillis);
+        } else {
+            acquireAndSend();
+        }
+    }
+
+    private void acquireAndSend() {
+        // Checked before the limiter, a rejected call must not use up a token
+        CircuitBreaker.Permit permit = breaker.tryAcquire();
+        if (permit == null) {
+            failed(new CircuitOpenException("TourCMS circuit open for " + endpoint, breaker.retryAfterMillis()), false);
+            return;
+        }
+
+        rateLimiter.acquire().whenComplete((ignored, throttled) -> {
+            if (throttled != null) {
+                breaker.onIgnored(permit);
+                failed(throttled, false);
+            } else if (future.isDone()) {
+                breaker.onIgnored(permit);
+                inFlight.decrementAndGet();
+            } else {
+                send(permit);
+            }
+        });
+    }
+
+    private void send(CircuitBreaker.Permit permit) {
+        Call call;
+        try {
+            // Signed only now, the x-tourcms-date must not age while queued in the limiter or backing off
+            call = client.newCall(requestFactory.build());
+        } catch (IOException | NoSuchAlgorithmException | InvalidKeyException e) {
+            breaker.onIgnored(permit);
+            failed(e, false);
+            return;
+        }
+        calls.add(call);
+        if (future.isDone()) {
+            call.cancel();
+        }
+
+        long startedAt = System.currentTimeMillis();
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                calls.remove(call);
+                if (call.isCanceled()) {
+                    breaker.onIgnored(permit);
+                } else {
+                    breaker.onFailure(permit, System.currentTimeMillis() - startedAt);
+                }
+                failed(e, true);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                calls.remove(call);
+                try (Response closeable = response) {
+                    long latency = System.currentTimeMillis() - startedAt;
+                    if (rateLimiter.onResponse(closeable)) {
+                        breaker.onIgnored(permit);
+                        failed(new RateLimitExceededException("Throttled by TourCMS: " + closeable.code() + " " + closeable.message(), rateLimiter.retryAfterMillis()), false);
+                        return;
+                    }
+                    if (closeable.code() >= 500) {
+                        breaker.onFailure(permit, latency);
+                    } else {
+                        // A 4xx is our request's fault, TourCMS itself is fine
+                        breaker.onSuccess(permit, latency);
+                    }
+                    if (!closeable.isSuccessful()) {
+                        failed(new IOException(errorMessage + closeable.message()), closeable.code() >= 500);
+                        return;
+                    }
+                    TourCmsRetryPolicy.recordLatency(endpoint, latency);
+
+                    assert closeable.body() != null;
+                    T result;
+                    try (InputStream xmlStream = closeable.body().byteStream()) {
+                        result = reader.read(xmlStream);
+                    }
+                    inFlight.decrementAndGet();
+                    future.complete(result);
+                } catch (IOException | RuntimeException e) {
+                    failed(e, false);
+                }
+            }
+        });
+    }
+
+    private void failed(Throwable error, boolean transientError) {
+        if (future.isDone()) {
+            inFlight.decrementAndGet();
+            return;
+        }
+
+        int attempt = attempts.get();
+        if (transientError && retry != Retry.NEVER && attempt < TourCmsRetryPolicy.MAX_ATTEMPTS && TourCmsRetryPolicy.tryAcquire()) {
+            long delay = TourCmsRetryPolicy.backoffMillis(attempt);
+            AppLogger.warn(TAG, String.format("Retrying %s in %d ms after attempt %d: %s", endpoint, delay, attempt, error.getMessage()));
+            // Launch first, so a concurrent hedge failing now doesn't see zero attempts in flight
+            launch(delay);
+            inFlight.decrementAndGet();
+            return;
+        }
+
+        if (inFlight.decrementAndGet() == 0) {
+            future.completeExceptionally(error);
+        }
+    }
+}
@@ -1,35 +1,41 @@
 package io.bokun.inventory.plugin.tourcms.api;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.JsonNode;
 import io.bokun.inventory.plugin.tourcms.model.TourCMSCustomerWrapper;
 import io.bokun.inventory.plugin.tourcms.model.TourCMSBooking;
 import io.bokun.inventory.plugin.tourcms.model.TourCMSCustomer;
 import io.bokun.inventory.plugin.tourcms.util.AppLogger;
 import com.fasterxml.jackson.dataformat.xml.XmlMapper;
-import io.bokun.inventory.plugin.tourcms.util.Mapping;
 import okhttp3.*;
-import org.apache.commons.codec.binary.Base64;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 public class TourCmsClient {
     private static final String TAG = "TourCmsClient";
     private static final String BASE_URL = "https://api.tourcms.com";
-    private static final String ALGORITHM = "HmacSha256";
+
+    /**
+     * Tours asked for in one {@link #getToursByDatesAsync(List, Map)} call.
+     */
+    public static final int TOURS_BY_DATES_BATCH_SIZE = System.getenv("TOURCMS_DATES_BATCH_SIZE") != null
+            ? Integer.parseInt(System.getenv("TOURCMS_DATES_BATCH_SIZE"))
+            : 20;
+
+    private static final int TOURS_BY_DATES_PER_PAGE = 200;
 
     private final OkHttpClient client;
     public final String marketplaceId;
@@ -37,20 +43,34 @@ public class TourCmsClient {
     public final String apiKey;
 
     private final XmlMapper xmlMapper;
-    private final ObjectMapper objectMapper;
+    private final TourDeparturesReader departuresReader;
+    private final TourCmsRateLimiter rateLimiter;
+    private final SingleFlight<JsonNode> inFlightReads = new SingleFlight<>();
 
     public TourCmsClient() {
         this(null, null, null);
     }
 
     public TourCmsClient(String marketplaceId, String channelId, String apiKey) {
-        this.client = new OkHttpClient();
+        this(TourCmsClientRegistry.httpClient(), marketplaceId, channelId, apiKey);
+    }
+
+    TourCmsClient(OkHttpClient client, String marketplaceId, String channelId, String apiKey) {
+        this.client = client;
         this.marketplaceId = marketplaceId != null ? marketplaceId : System.getenv("TOURCMS_MARKETPLACE_ID");
         this.channelId = channelId != null ? channelId : System.getenv("TOURCMS_CHANNEL_ID");
         this.apiKey = apiKey != null ? apiKey : System.getenv("TOURCMS_API_KEY");
 
         this.xmlMapper = new XmlMapper();
-        this.objectMapper = new ObjectMapper();
+        this.departuresReader = new TourDeparturesReader(xmlMapper);
+        this.rateLimiter = TourCmsRateLimiter.forChannel(this.marketplaceId, this.channelId);
+    }
+
+    /**
+     * @see TourCmsRateLimiter#hasSpareTokens(double)
+     */
+    public boolean hasSpareCapacity(double reservedTokens) {
+        return rateLimiter.hasSpareTokens(reservedTokens);
     }
 
     private String generateSignature(String marketplaceId, String key, String path, String verb, String channel, long time, String queryString) throws NoSuchAlgorithmException, InvalidKeyException, UnsupportedEncodingException {
@@ -58,11 +78,7 @@ public class TourCmsClient {
         if (!queryString.isEmpty()) {
             toSign += "?" + queryString;
         }
-        Mac mac = Mac.getInstance("HmacSha256");
-        SecretKeySpec secret = new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), ALGORITHM);
-        mac.init(secret);
-        byte[] shaDigest = mac.doFinal(toSign.getBytes(StandardCharsets.UTF_8));
-        String result = new String(Base64.encodeBase64(shaDigest));
+        String result = RequestSigner.sign(RequestSigner.HMAC_SHA256, key, toSign);
         return URLEncoder.encode(result, String.valueOf(StandardCharsets.UTF_8));
     }
 
@@ -83,7 +99,7 @@ public class TourCmsClient {
                 .collect(Collectors.joining("&"));
     }
 
-    private Response buildRequest(String endpoint, String method, Map<String, Object> queryParams, String xmlBody) throws IOException, NoSuchAlgorithmException, InvalidKeyException {
+    private Request buildRequest(String endpoint, String method, Map<String, Object> queryParams, RequestBody body) throws IOException, NoSuchAlgorithmException, InvalidKeyException {
         String fullUrl = BASE_URL + endpoint;
 
         String queryString = buildQueryString(queryParams);
@@ -93,10 +109,7 @@ public class TourCmsClient {
         }
 
         long timestamp = System.currentTimeMillis();
-        Date dt = new Date(timestamp);
-        SimpleDateFormat ft = new SimpleDateFormat ("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.ENGLISH);
-        ft.setTimeZone(TimeZone.getTimeZone("GMT"));
-        String currDate = ft.format(dt);
+        String currDate = RequestSigner.formatTourCmsDate(timestamp);
 
         String signature = generateSignature(marketplaceId, apiKey, endpoint, method, channelId, timestamp, queryString);
 
@@ -111,8 +124,7 @@ public class TourCmsClient {
                 .addHeader("Accept", "application/xml")
                 .addHeader("Content-Type", "text/xml;charset='utf-8'");
 
-        if (xmlBody != null && !xmlBody.isEmpty()) {
-            RequestBody body = RequestBody.create(xmlBody, MediaType.parse("application/xml"));
+        if (body != null) {
             if ("POST".equalsIgnoreCase(method)) {
                 requestBuilder.post(body);
             } else if ("PUT".equalsIgnoreCase(method)) {
@@ -126,81 +138,245 @@ public class TourCmsClient {
             }
         }
 
-        return client.newCall(requestBuilder.build()).execute();
+        return requestBuilder.build();
     }
 
-    private String resultResponse(Response response) throws IOException {
-        assert response.body() != null;
-        String xmlResponse = response.body().string();
-        Object data = xmlMapper.readValue(xmlResponse, Object.class);
-        return objectMapper.writerWithDefaultPrettyPrinter().writeValueAsString(data);
+    /**
+     * Sends the request on the OkHttp dispatcher without blocking the caller, through the channel's rate limiter
+     * and the given retry mode (see {@link TourCmsCall}). The response is decoded on the dispatcher thread, and
+     * cancelling the returned future cancels the HTTP call.
+     */
+    private <T> CompletableFuture<T> execute(String endpoint, String method, Map<String, Object> queryParams, RequestBody body, String errorMessage,
+                                             TourCmsCall.Retry retry, TourCmsCall.ResponseReader<T> reader) {
+        return new TourCmsCall<>(client, rateLimiter, endpoint, () -> buildRequest(endpoint, method, queryParams, body), errorMessage, reader, retry).start();
     }
 
-    public String getTours() throws IOException, NoSuchAlgorithmException, InvalidKeyException {
-        return getTours(null);
+    /**
+     * Idempotent GETs that are already in flight with the same query are not sent again: callers share the
+     * pending call and its (read-only) result tree.
+     */
+    private CompletableFuture<JsonNode> execute(String endpoint, String method, Map<String, Object> queryParams, RequestBody body, String errorMessage,
+                                                TourCmsCall.Retry retry) {
+        // Decode straight from the XML stream, callers get the tree without any String round trip
+        if (retry == TourCmsCall.Retry.NEVER || !"GET".equals(method)) {
+            return execute(endpoint, method, queryParams, body, errorMessage, retry, xmlMapper::readTree);
+        }
+        return inFlightReads.join(endpoint + "?" + buildQueryString(queryParams),
+                () -> execute(endpoint, method, queryParams, body, errorMessage, retry, xmlMapper::readTree));
     }
 
-    public String getTours(Map<String, Object> query) throws IOException, NoSuchAlgorithmException, InvalidKeyException {
-        try (Response response = buildRequest("/c/tours/search.xml", "GET", query, null)) {
-            if (!response.isSuccessful()) {
-                throw new IOException("Failed to fetch products: " + response.message());
+    /**
+     * Blocks until the future is done, for the synchronous API. Must not be called from an OkHttp callback.
+     */
+    private static <T> T await(CompletableFuture<T> future) throws IOException, NoSuchAlgorithmException, InvalidKeyException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for TourCMS", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof NoSuchAlgorithmException) {
+                throw (NoSuchAlgorithmException) cause;
+            } else if (cause instanceof InvalidKeyException) {
+                throw (InvalidKeyException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
             }
-            return resultResponse(response);
+            throw new IOException(cause);
         }
     }
 
-    public String getToursByDates(Map<String, Object> query) throws IOException, NoSuchAlgorithmException, InvalidKeyException {
-        try (Response response = buildRequest("/c/tour/datesprices/datesndeals/search.xml", "GET", query, null)) {
-            if (!response.isSuccessful()) {
-                throw new IOException("Failed to fetch products by date: " + response.message());
+    public JsonNode getTours() throws IOException, NoSuchAlgorithmException, InvalidKeyException {
+        return getTours(null);
+    }
+
+    public JsonNode getTours(Map<String, Object> query) throws IOException, NoSuchAlgorithmException, InvalidKeyException {
+        return await(getToursAsync(query));
+    }
+
+    public CompletableFuture<JsonNode> getToursAsync(Map<String, Object> query) {
+        return execute("/c/tours/search.xml", "GET", query, null, "Failed to fetch products: ", TourCmsCall.Retry.ON_TRANSIENT_ERROR);
+    }
+
+    public JsonNode getToursByDates(Map<String, Object> query) throws IOException, NoSuchAlgorithmException, InvalidKeyException {
+        return await(getToursByDatesAsync(query));
+    }
+
+    public CompletableFuture<JsonNode> getToursByDatesAsync(Map<String, Object> query) {
+        return execute("/c/tour/datesprices/datesndeals/search.xml", "GET", query, null, "Failed to fetch products by date: ", TourCmsCall.Retry.WITH_HEDGING);
+    }
+
+    /**
+     * Searches the dates of several tours in one call, every page of it, and sorts them out per tour by their
+     * {@code tour_id}. Call with at most {@link #TOURS_BY_DATES_BATCH_SIZE} tours.
+     * <p>
+     * Dates aren't collapsed with {@code distinct_start_dates}, which would merge tours sharing a date: each one
+     * comes back once per departure. Dates without a {@code tour_id} of the tours asked for are logged and left
+     * out; if no date of a multi-tour search had one, each tour is searched for on its own instead.
+     *
+     * @param query filters applied to every tour, such as {@code startdate_start}; {@code id} is set from the tours
+     * @return the date nodes of each tour, in the order of {@code tourIds}; empty for a tour without dates.
+     * Cancelling it cancels the calls still in flight
+     */
+    public CompletableFuture<Map<String, List<JsonNode>>> getToursByDatesAsync(List<String> tourIds, Map<String, Object> query) {
+        Map<String, Object> params = new HashMap<>(query);
+        params.put("id", String.join(",", tourIds));
+        params.put("per_page", TOURS_BY_DATES_PER_PAGE);
+
+        Map<String, List<JsonNode>> datesByTour = new LinkedHashMap<>();
+        tourIds.forEach(tourId -> datesByTour.put(tourId, new ArrayList<>()));
+        // Only touched by the demultiplexer, which the pager calls one page at a time
+        Set<String> unmatchedTourIds = new LinkedHashSet<>();
+        AtomicInteger matched = new AtomicInteger();
+        AtomicInteger unmatched = new AtomicInteger();
+        Consumer<JsonNode> demultiplexer = datesNode -> {
+            JsonNode dates = datesNode.path("dates_and_prices").path("date");
+            for (JsonNode date : dates.isArray() ? dates : Collections.singletonList(dates)) {
+                if (date.isMissingNode()) {
+                    continue;
+                }
+                // A single tour may come back without its id
+                String tourId = tourIds.size() == 1 ? tourIds.get(0) : date.path("tour_id").asText();
+                List<JsonNode> tourDates = datesByTour.get(tourId);
+                if (tourDates != null) {
+                    tourDates.add(date);
+                    matched.incrementAndGet();
+                } else {
+                    unmatched.incrementAndGet();
+                    unmatchedTourIds.add(tourId.isEmpty() ? "(none)" : tourId);
+                }
+            }
+        };
+
+        CompletableFuture<Map<String, List<JsonNode>>> result = new CompletableFuture<>();
+        Set<CompletableFuture<?>> calls = ConcurrentHashMap.newKeySet();
+        result.whenComplete((ignored, error) -> {
+            if (result.isCancelled()) {
+                calls.forEach(call -> call.cancel(true));
             }
-            return resultResponse(response);
+        });
+
+        track(result, calls, getToursByDatesAsync(params))
+                .thenCompose(firstPage -> {
+                    demultiplexer.accept(firstPage);
+                    int totalPages = (int) Math.ceil((double) firstPage.path("total_date_count").asInt() / TOURS_BY_DATES_PER_PAGE);
+                    return track(result, calls, TourCmsPager.fetchPages(2, totalPages, pageNumber -> {
+                        Map<String, Object> pageParams = new HashMap<>(params);
+                        pageParams.put("page", pageNumber);
+                        return getToursByDatesAsync(pageParams);
+                    }, demultiplexer));
+                })
+                .thenCompose(ignored -> {
+                    // The pager never calls the demultiplexer once it is done
+                    if (unmatched.get() == 0) {
+                        return CompletableFuture.completedFuture(datesByTour);
+                    }
+                    if (matched.get() > 0) {
+                        AppLogger.warn(TAG, String.format("Dropped %d dates of tours %s not asked for, searching %s",
+                                unmatched.get(), unmatchedTourIds, tourIds));
+                        return CompletableFuture.completedFuture(datesByTour);
+                    }
+                    AppLogger.warn(TAG, String.format("No date of the search for %s had a tour_id asked for (got %s), searching each tour on its own",
+                            tourIds, unmatchedTourIds));
+                    return searchEachTour(tourIds, query, result, calls);
+                })
+                .whenComplete((datesOfTours, error) -> {
+                    if (error != null) {
+                        result.completeExceptionally(error);
+                    } else {
+                        result.complete(datesOfTours);
+                    }
+                });
+        return result;
+    }
+
+    private CompletableFuture<Map<String, List<JsonNode>>> searchEachTour(List<String> tourIds, Map<String, Object> query,
+                                                                         CompletableFuture<?> result, Set<CompletableFuture<?>> calls) {
+        Map<String, List<JsonNode>> datesByTour = new ConcurrentHashMap<>();
+        CompletableFuture<?>[] searches = new CompletableFuture<?>[tourIds.size()];
+        for (int i = 0; i < searches.length; i++) {
+            String tourId = tourIds.get(i);
+            searches[i] = track(result, calls, getToursByDatesAsync(Collections.singletonList(tourId), query))
+                    .thenAccept(dates -> datesByTour.put(tourId, dates.get(tourId)));
         }
+        return CompletableFuture.allOf(searches).thenApply(ignored -> {
+            Map<String, List<JsonNode>> ordered = new LinkedHashMap<>();
+            tourIds.forEach(tourId -> ordered.put(tourId, datesByTour.get(tourId)));
+            return ordered;
+        });
     }
 
-    public String getTourDepartures(Map<String, Object> query) throws IOException, NoSuchAlgorithmException, InvalidKeyException {
-        try (Response response = buildRequest("/c/tour/datesprices/dep/show.xml", "GET", query, null)) {
-            if (!response.isSuccessful()) {
-                throw new IOException("Failed to fetch products by date: " + response.message());
-            }
-            return resultResponse(response);
+    /**
+     * Registers a call made on behalf of the result, so cancelling the result cancels it.
+     */
+    private static <T> CompletableFuture<T> track(CompletableFuture<?> result, Set<CompletableFuture<?>> calls, CompletableFuture<T> call) {
+        calls.add(call);
+        call.whenComplete((ignored, error) -> calls.remove(call));
+        if (result.isCancelled()) {
+            call.cancel(true);
         }
+        return call;
+    }
+
+    public JsonNode getTourDepartures(Map<String, Object> query) throws IOException, NoSuchAlgorithmException, InvalidKeyException {
+        return await(getTourDeparturesAsync(query));
+    }
+
+    public CompletableFuture<JsonNode> getTourDeparturesAsync(Map<String, Object> query) {
+        return execute("/c/tour/datesprices/dep/show.xml", "GET", query, null, "Failed to fetch products by date: ", TourCmsCall.Retry.WITH_HEDGING);
+    }
+
+    /**
+     * Same request as {@link #getTourDepartures(Map)}, but departures are streamed to the consumer one by one
+     * instead of being collected into the returned tree.
+     *
+     * @return the response without departure entries (tour fields, sale_currency, total_departure_count, ...)
+     */
+    public JsonNode streamTourDepartures(Map<String, Object> query, Consumer<JsonNode> departureConsumer) throws IOException, NoSuchAlgorithmException, InvalidKeyException {
+        return await(streamTourDeparturesAsync(query, departureConsumer));
+    }
+
+    /**
+     * Async {@link #streamTourDepartures(Map, Consumer)}; the consumer runs on the OkHttp dispatcher thread.
+     */
+    public CompletableFuture<JsonNode> streamTourDeparturesAsync(Map<String, Object> query, Consumer<JsonNode> departureConsumer) {
+        // Retried but never hedged, two racing readers would hand the same departures to the consumer
+        return execute("/c/tour/datesprices/dep/show.xml", "GET", query, null, "Failed to fetch products by date: ",
+                TourCmsCall.Retry.ON_TRANSIENT_ERROR, xmlStream -> departuresReader.read(xmlStream, departureConsumer));
     }
 
-    public String getTour(String id, boolean showOptions) throws IOException, NoSuchAlgorithmException, InvalidKeyException {
+    public JsonNode getTour(String id, boolean showOptions) throws IOException, NoSuchAlgorithmException, InvalidKeyException {
+        return await(getTourAsync(id, showOptions));
+    }
+
+    public CompletableFuture<JsonNode> getTourAsync(String id, boolean showOptions) {
         Map<String, Object> params = new HashMap<>();
         params.put("id", id);
         if (showOptions) {
             params.put("show_options", 1);
         }
-        return getTour(params);
+        return getTourAsync(params);
     }
 
-    public String getTour(Map<String, Object> query) throws IOException, NoSuchAlgorithmException, InvalidKeyException {
-        try (Response response = buildRequest("/c/tour/show.xml", "GET", query, null)) {
-            if (!response.isSuccessful()) {
-                throw new IOException("Failed to fetch products: " + response.message());
-            }
-            return resultResponse(response);
-        }
+    public JsonNode getTour(Map<String, Object> query) throws IOException, NoSuchAlgorithmException, InvalidKeyException {
+        return await(getTourAsync(query));
     }
 
-    public String updateTour(String tourXml) throws IOException, NoSuchAlgorithmException, InvalidKeyException {
-        try (Response response = buildRequest("/c/tour/update.xml", "POST", null, tourXml)) {
-            if (!response.isSuccessful()) {
-                throw new IOException("Failed to update tour: " + response.message());
-            }
-            return resultResponse(response);
-        }
+    public CompletableFuture<JsonNode> getTourAsync(Map<String, Object> query) {
+        return execute("/c/tour/show.xml", "GET", query, null, "Failed to fetch products: ", TourCmsCall.Retry.WITH_HEDGING);
     }
 
-    public String showBooking(Map<String, Object> query) throws IOException, NoSuchAlgorithmException, InvalidKeyException {
-        try (Response response = buildRequest("/c/booking/show.xml", "GET", query, null)) {
-            if (!response.isSuccessful()) {
-                throw new IOException("Failed to fetch products: " + response.message());
-            }
-            return resultResponse(response);
-        }
+    public JsonNode updateTour(String tourXml) throws IOException, NoSuchAlgorithmException, InvalidKeyException {
+        RequestBody body = RequestBody.create(tourXml, MediaType.parse("application/xml"));
+        return await(execute("/c/tour/update.xml", "POST", null, body, "Failed to update tour: ", TourCmsCall.Retry.NEVER));
+    }
+
+    public JsonNode showBooking(Map<String, Object> query) throws IOException, NoSuchAlgorithmException, InvalidKeyException {
+        return await(execute("/c/booking/show.xml", "GET", query, null, "Failed to fetch products: ", TourCmsCall.Retry.NEVER));
     }
 
     public static String escapeXml(String input) {
@@ -215,140 +391,80 @@ public class TourCmsClient {
                 .replace("'", "&apos;");
     }
 
-    public String updateCustomer(TourCMSCustomer customer) throws IOException, NoSuchAlgorithmException, InvalidKeyException, JAXBException {
-        JAXBContext context = JAXBContext.newInstance(TourCMSCustomerWrapper.class);
-        Marshaller marshaller = context.createMarshaller();
-        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
-
+    public JsonNode updateCustomer(TourCMSCustomer customer) throws IOException, NoSuchAlgorithmException, InvalidKeyException, JAXBException {
         // Escape dữ liệu trước khi marshal
         customer.setFirstName(escapeXml(customer.getFirstName()));
         customer.setSurname(escapeXml(customer.getSurname()));
         customer.setEmail(escapeXml(customer.getEmail()));
         customer.setTelMobile(escapeXml(customer.getTelMobile()));
 
-        TourCMSCustomerWrapper wrapper = new TourCMSCustomerWrapper(customer);
-
-        StringWriter stringWriter = new StringWriter();
-        marshaller.marshal(wrapper, stringWriter);
-
-        String customerXml = stringWriter.toString();
-        AppLogger.info(TAG, "Generated XML for Customer:\n" + customerXml);
-
-        try (Response response = buildRequest("/c/customer/update.xml", "POST", null, customerXml)) {
-            if (!response.isSuccessful()) {
-                throw new IOException("Failed to update customer: " + response.message());
-            }
+        RequestBody customerXml = new JaxbRequestBody(new TourCMSCustomerWrapper(customer));
+        AppLogger.info(TAG, "Updating customer: " + customer.getCustomerId());
 
-            String result = resultResponse(response);
-            AppLogger.info(TAG, "Customer updated successfully: " + Mapping.MAPPER.writeValueAsString(Mapping.MAPPER.readTree(result)));
-            return result;
-        }
+        JsonNode result = await(execute("/c/customer/update.xml", "POST", null, customerXml, "Failed to update customer: ", TourCmsCall.Retry.NEVER));
+        AppLogger.info(TAG, "Customer updated successfully: " + result);
+        return result;
     }
 
-    public String checkTourAvailability(HashMap<String, Object> query) throws IOException, NoSuchAlgorithmException, InvalidKeyException {
-        try (Response response = buildRequest("/c/tour/datesprices/checkavail.xml", "GET", query, null)) {
-            if (!response.isSuccessful()) {
-                throw new IOException("Failed to check tour availability: " + response.message());
-            }
-
-            String result = resultResponse(response);
-            AppLogger.info(TAG, "Check tour availability successfully: " + Mapping.MAPPER.writeValueAsString(Mapping.MAPPER.readTree(result)));
-            return result;
-        }
+    public JsonNode checkTourAvailability(HashMap<String, Object> query) throws IOException, NoSuchAlgorithmException, InvalidKeyException {
+        return await(checkTourAvailabilityAsync(query));
     }
 
-    public String createTemporaryBooking(TourCMSBooking booking) throws IOException, NoSuchAlgorithmException, InvalidKeyException, JAXBException {
-        JAXBContext context = JAXBContext.newInstance(TourCMSBooking.class);
-        Marshaller marshaller = context.createMarshaller();
-        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
-
-        StringWriter stringWriter = new StringWriter();
-        marshaller.marshal(booking, stringWriter);
+    public CompletableFuture<JsonNode> checkTourAvailabilityAsync(Map<String, Object> query) {
+        return execute("/c/tour/datesprices/checkavail.xml", "GET", query, null, "Failed to check tour availability: ", TourCmsCall.Retry.WITH_HEDGING)
+                .thenApply(result -> {
+                    AppLogger.info(TAG, "Check tour availability successfully: " + result);
+                    return result;
+                });
+    }
 
-        String bookingXml = stringWriter.toString();
-        AppLogger.info(TAG, "Generated XML for Booking:\n" + bookingXml);
+    public JsonNode createTemporaryBooking(TourCMSBooking booking) throws IOException, NoSuchAlgorithmException, InvalidKeyException, JAXBException {
+        RequestBody bookingXml = new JaxbRequestBody(booking);
+        AppLogger.info(TAG, "Sending booking: " + booking.getBookingId());
 
-        try (Response response = buildRequest("/c/booking/new/start.xml", "POST", null, bookingXml)) {
-            if (!response.isSuccessful()) {
-                throw new IOException("Failed to create temporary booking: " + response.message());
-            }
-
-            String result = resultResponse(response);
-            AppLogger.info(TAG, "Temporary booking created successfully: " + Mapping.MAPPER.writeValueAsString(Mapping.MAPPER.readTree(result)));
-            return result;
-        }
+        JsonNode result = await(execute("/c/booking/new/start.xml", "POST", null, bookingXml, "Failed to create temporary booking: ", TourCmsCall.Retry.NEVER));
+        AppLogger.info(TAG, "Temporary booking created successfully: " + result);
+        return result;
     }
 
-    public String deleteTemporaryBooking(String bookingId) throws IOException, NoSuchAlgorithmException, InvalidKeyException {
+    public JsonNode deleteTemporaryBooking(String bookingId) throws IOException, NoSuchAlgorithmException, InvalidKeyException {
         Map<String, Object> params = new HashMap<>();
         params.put("booking_id", bookingId);
 
-        try (Response response = buildRequest("/c/booking/delete.xml", "POST", params, null)) {
-            if (!response.isSuccessful()) {
-                throw new IOException("Failed to delete temporary booking: " + response.message());
-            }
-
-            String result = resultResponse(response);
-            AppLogger.info(TAG, "Temporary Booking deleted successfully: " + Mapping.MAPPER.writeValueAsString(Mapping.MAPPER.readTree(result)));
-            return result;
-        }
+        JsonNode result = await(execute("/c/booking/delete.xml", "POST", params, null, "Failed to delete temporary booking: ", TourCmsCall.Retry.NEVER));
+        AppLogger.info(TAG, "Temporary Booking deleted successfully: " + result);
+        return result;
     }
 
-    public String commitBooking(TourCMSBooking booking) throws IOException, NoSuchAlgorithmException, InvalidKeyException, JAXBException {
-        JAXBContext context = JAXBContext.newInstance(TourCMSBooking.class);
-        Marshaller marshaller = context.createMarshaller();
-        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
-
-        StringWriter stringWriter = new StringWriter();
-        marshaller.marshal(booking, stringWriter);
+    public JsonNode commitBooking(TourCMSBooking booking) throws IOException, NoSuchAlgorithmException, InvalidKeyException, JAXBException {
+        RequestBody bookingXml = new JaxbRequestBody(booking);
+        AppLogger.info(TAG, "Sending booking: " + booking.getBookingId());
 
-        String bookingXml = stringWriter.toString();
-        AppLogger.info(TAG, "Generated XML for Booking:\n" + bookingXml);
-
-        try (Response response = buildRequest("/c/booking/new/commit.xml", "POST", null, bookingXml)) {
-            if (!response.isSuccessful()) {
-                throw new IOException("Failed to commit booking: " + response.message());
-            }
-
-            String result = resultResponse(response);
-            AppLogger.info(TAG, "Booking commit successfully: " + Mapping.MAPPER.writeValueAsString(Mapping.MAPPER.readTree(result)));
-            return result;
-        }
+        JsonNode result = await(execute("/c/booking/new/commit.xml", "POST", null, bookingXml, "Failed to commit booking: ", TourCmsCall.Retry.NEVER));
+        AppLogger.info(TAG, "Booking commit successfully: " + result);
+        return result;
     }
 
-    public String cancelBooking(TourCMSBooking booking) throws IOException, NoSuchAlgorithmException, InvalidKeyException, JAXBException {
-        JAXBContext context = JAXBContext.newInstance(TourCMSBooking.class);
-        Marshaller marshaller = context.createMarshaller();
-        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
-
-        StringWriter stringWriter = new StringWriter();
-        marshaller.marshal(booking, stringWriter);
+    public JsonNode cancelBooking(TourCMSBooking booking) throws IOException, NoSuchAlgorithmException, InvalidKeyException, JAXBException {
+        RequestBody bookingXml = new JaxbRequestBody(booking);
+        AppLogger.info(TAG, "Sending booking: " + booking.getBookingId());
 
-        String bookingXml = stringWriter.toString();
-        AppLogger.info(TAG, "Generated XML for Booking:\n" + bookingXml);
-
-        try (Response response = buildRequest("/c/booking/cancel.xml", "POST", null, bookingXml)) {
-            if (!response.isSuccessful()) {
-                throw new IOException("Failed to cancel booking: " + response.message());
-            }
-
-            String result = resultResponse(response);
-            AppLogger.info(TAG, "Booking cancel successfully: " + Mapping.MAPPER.writeValueAsString(Mapping.MAPPER.readTree(result)));
-            return result;
-        }
+        JsonNode result = await(execute("/c/booking/cancel.xml", "POST", null, bookingXml, "Failed to cancel booking: ", TourCmsCall.Retry.NEVER));
+        AppLogger.info(TAG, "Booking cancel successfully: " + result);
+        return result;
     }
 
     public static void main(String[] args) throws IOException, NoSuchAlgorithmException, InvalidKeyException, JAXBException {
         TourCmsClient tourCmsClient = new TourCmsClient("58193", "16079", "Q3NujxeAumuTvJbWF");
 
-//        String product = tourCmsClient.getProduct("48", true);
+//        JsonNode product = tourCmsClient.getProduct("48", true);
 //        AppLogger.info(TAG, String.format(" - Response: %s", product));
 
 //        Map<String, Object> params = new HashMap<>();
 //        params.put("per_page", 200);
 //        params.put("tour_id", 48);
 //        AppLogger.info(TAG, String.format("Get all products: %s - %s - %s", tourCmsClient.apiKey, tourCmsClient.marketplaceId, tourCmsClient.channelId));
-//        String products = tourCmsClient.getTours(params);
+//        JsonNode products = tourCmsClient.getTours(params);
 //        AppLogger.info(TAG, String.format(" - Response: %s", products));
 
         // tourCmsClient.deleteTemporaryBooking("65277");
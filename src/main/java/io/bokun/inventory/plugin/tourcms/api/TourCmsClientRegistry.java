@@ -0,0 +1,129 @@
+package io.bokun.inventory.plugin.tourcms.api;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import io.bokun.inventory.plugin.tourcms.Configuration;
+import io.bokun.inventory.plugin.tourcms.util.AppLogger;
+import okhttp3.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived {@link TourCmsClient} instances keyed by (marketplaceId, channelId, apiKey), at most
+ * {@code TOURCMS_HTTP_MAX_CLIENTS} of them.
+ * <p>
+ * All clients share a single {@link OkHttpClient}, so connection pool, dispatcher threads and
+ * TLS sessions to api.tourcms.com are reused across Bokun calls instead of being rebuilt per request.
+ */
+public class TourCmsClientRegistry {
+
+    private static final String TAG = "TourCmsClientRegistry";
+    private static final String WARM_UP_URL = "https://api.tourcms.com/";
+
+    private static final int MAX_REQUESTS = System.getenv("TOURCMS_HTTP_MAX_REQUESTS") != null
+            ? Integer.parseInt(System.getenv("TOURCMS_HTTP_MAX_REQUESTS"))
+            : 64;
+
+    private static final int MAX_REQUESTS_PER_HOST = System.getenv("TOURCMS_HTTP_MAX_REQUESTS_PER_HOST") != null
+            ? Integer.parseInt(System.getenv("TOURCMS_HTTP_MAX_REQUESTS_PER_HOST"))
+            : 32;
+
+    private static final int MAX_IDLE_CONNECTIONS = System.getenv("TOURCMS_HTTP_MAX_IDLE_CONNECTIONS") != null
+            ? Integer.parseInt(System.getenv("TOURCMS_HTTP_MAX_IDLE_CONNECTIONS"))
+            : 16;
+
+    private static final long KEEP_ALIVE_SECONDS = System.getenv("TOURCMS_HTTP_KEEP_ALIVE_SECONDS") != null
+            ? Long.parseLong(System.getenv("TOURCMS_HTTP_KEEP_ALIVE_SECONDS"))
+            : 300L;
+
+    private static final long CONNECT_TIMEOUT_SECONDS = System.getenv("TOURCMS_HTTP_CONNECT_TIMEOUT") != null
+            ? Long.parseLong(System.getenv("TOURCMS_HTTP_CONNECT_TIMEOUT"))
+            : 10L;
+
+    private static final long READ_TIMEOUT_SECONDS = System.getenv("TOURCMS_HTTP_READ_TIMEOUT") != null
+            ? Long.parseLong(System.getenv("TOURCMS_HTTP_READ_TIMEOUT"))
+            : 10L;
+
+    private static final int WARM_UP_CONNECTIONS = System.getenv("TOURCMS_HTTP_WARM_UP_CONNECTIONS") != null
+            ? Integer.parseInt(System.getenv("TOURCMS_HTTP_WARM_UP_CONNECTIONS"))
+            : 2;
+
+    private static final long MAX_CLIENTS = System.getenv("TOURCMS_HTTP_MAX_CLIENTS") != null
+            ? Long.parseLong(System.getenv("TOURCMS_HTTP_MAX_CLIENTS"))
+            : 1000L;
+
+    private static final OkHttpClient HTTP_CLIENT = buildHttpClient();
+    // By marketplaceId:channelId:hash of the API key, so keys aren't held in plain text; clients of rotated keys age out
+    private static final Cache<String, TourCmsClient> CLIENTS = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CLIENTS)
+            .expireAfterAccess(1, TimeUnit.DAYS)
+            .build();
+
+    private TourCmsClientRegistry() {
+    }
+
+    private static OkHttpClient buildHttpClient() {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(MAX_REQUESTS);
+        dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+
+        return new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS))
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .readTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .retryOnConnectionFailure(true)
+                .build();
+    }
+
+    public static OkHttpClient httpClient() {
+        return HTTP_CLIENT;
+    }
+
+    public static TourCmsClient get(Configuration configuration) {
+        return get(configuration.marketplaceId, configuration.channelId, configuration.getTourcmsPrivateKey());
+    }
+
+    public static TourCmsClient get(String marketplaceId, String channelId, String apiKey) {
+        String key = marketplaceId + ":" + channelId + ":" + Hashing.sha256().hashString(String.valueOf(apiKey), StandardCharsets.UTF_8);
+        try {
+            return CLIENTS.get(key, () -> new TourCmsClient(HTTP_CLIENT, marketplaceId, channelId, apiKey));
+        } catch (ExecutionException e) {
+            // The loader can't throw
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Opens connections to api.tourcms.com ahead of the first Bokun call, so DNS lookup,
+     * TCP and TLS handshakes are not paid on the request path.
+     */
+    public static void warmUp() {
+        AppLogger.info(TAG, String.format("Warming up %d connection(s) to %s", WARM_UP_CONNECTIONS, WARM_UP_URL));
+        for (int i = 0; i < WARM_UP_CONNECTIONS; i++) {
+            Request request = new Request.Builder()
+                    .url(WARM_UP_URL)
+                    .head()
+                    .build();
+
+            HTTP_CLIENT.newCall(request).enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    AppLogger.warn(TAG, "Connection warm-up failed: " + e.getMessage());
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    AppLogger.info(TAG, String.format("Connection warmed up: %s %s", response.protocol(), response.code()));
+                    response.close();
+                }
+            });
+        }
+    }
+}
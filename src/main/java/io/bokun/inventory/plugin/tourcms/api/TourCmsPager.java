@@ -0,0 +1,134 @@
+package io.bokun.inventory.plugin.tourcms.api;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Fetches the remaining pages of a paged TourCMS query concurrently.
+ * <p>
+ * At most {@code TOURCMS_PAGE_CONCURRENCY} pages of one query are in flight at a time, and results are
+ * handed to the consumer strictly in page order, so callers see the same sequence as a sequential loop.
+ * No thread waits for a page: the next page is requested from the completion of an earlier one.
+ */
+public class TourCmsPager {
+
+    private static final int PAGE_CONCURRENCY = System.getenv("TOURCMS_PAGE_CONCURRENCY") != null
+            ? Integer.parseInt(System.getenv("TOURCMS_PAGE_CONCURRENCY"))
+            : 4;
+
+    public static final long DEFAULT_DEADLINE_MILLIS = System.getenv("TOURCMS_PAGE_DEADLINE_MS") != null
+            ? Long.parseLong(System.getenv("TOURCMS_PAGE_DEADLINE_MS"))
+            : 25000L;
+
+    private static final ScheduledExecutorService DEADLINES = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "tourcms-page-deadline");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @FunctionalInterface
+    public interface PageLoader<T> {
+        CompletableFuture<T> load(int page);
+    }
+
+    private TourCmsPager() {
+    }
+
+    public static <T> CompletableFuture<Void> fetchPages(int firstPage, int lastPage, PageLoader<T> loader, Consumer<T> consumer) {
+        return fetchPages(firstPage, lastPage, loader, consumer, DEFAULT_DEADLINE_MILLIS);
+    }
+
+    /**
+     * Loads pages {@code firstPage..lastPage} and passes each result to the consumer in page order.
+     * The consumer is never called once the returned future is done.
+     *
+     * @return completes when every page was consumed; fails with an {@link IOException} if any page fails,
+     * or if not all pages arrived before the deadline
+     */
+    public static <T> CompletableFuture<Void> fetchPages(int firstPage, int lastPage, PageLoader<T> loader, Consumer<T> consumer, long deadlineMillis) {
+        Window<T> window = new Window<>(lastPage, loader, consumer);
+        if (firstPage > lastPage) {
+            window.result.complete(null);
+            return window.result;
+        }
+
+        ScheduledFuture<?> deadline = DEADLINES.schedule(
+                () -> window.fail(new IOException("Timed out waiting for TourCMS pages", new TimeoutException())),
+                deadlineMillis, TimeUnit.MILLISECONDS);
+        window.result.whenComplete((ignored, error) -> {
+            deadline.cancel(false);
+            window.cancelPending();
+        });
+
+        for (int page = firstPage; page <= lastPage && page < firstPage + PAGE_CONCURRENCY; page++) {
+            window.start(page);
+        }
+        window.consume(firstPage);
+        return window.result;
+    }
+
+    private static class Window<T> {
+        private final int lastPage;
+        private final PageLoader<T> loader;
+        private final Consumer<T> consumer;
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+        private final ConcurrentMap<Integer, CompletableFuture<T>> pending = new ConcurrentHashMap<>();
+
+        Window(int lastPage, PageLoader<T> loader, Consumer<T> consumer) {
+            this.lastPage = lastPage;
+            this.loader = loader;
+            this.consumer = consumer;
+        }
+
+        void start(int page) {
+            CompletableFuture<T> future;
+            try {
+                future = loader.load(page);
+            } catch (RuntimeException e) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+            pending.put(page, future);
+        }
+
+        void consume(int page) {
+            pending.get(page).whenComplete((value, error) -> {
+                pending.remove(page);
+                if (error != null) {
+                    fail(error);
+                    return;
+                }
+                // Refill the window before handing over, so the next page is already loading
+                if (page + PAGE_CONCURRENCY <= lastPage && !result.isDone()) {
+                    start(page + PAGE_CONCURRENCY);
+                }
+                synchronized (this) {
+                    if (result.isDone()) {
+                        return;
+                    }
+                    try {
+                        consumer.accept(value);
+                    } catch (RuntimeException e) {
+                        result.completeExceptionally(e);
+                        return;
+                    }
+                }
+                if (page == lastPage) {
+                    result.complete(null);
+                } else {
+                    consume(page + 1);
+                }
+            });
+        }
+
+        synchronized void fail(Throwable error) {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            result.completeExceptionally(cause instanceof IOException ? cause : new IOException("Failed to fetch TourCMS page", cause));
+        }
+
+        void cancelPending() {
+            pending.values().forEach(future -> future.cancel(true));
+        }
+    }
+}
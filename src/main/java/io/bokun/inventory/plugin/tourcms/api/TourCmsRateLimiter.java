@@ -0,0 +1,157 @@
+package io.bokun.inventory.plugin.tourcms.api;
+
+import io.bokun.inventory.plugin.tourcms.util.AppLogger;
+import okhttp3.Response;
+
+import java.util.concurrent.*;
+
+/**
+ * Token bucket for outbound TourCMS calls of one (marketplaceId, channelId) pair.
+ * <p>
+ * A caller reserves a token up front and is released once the bucket has refilled far enough, so nobody
+ * holds a thread while queued. If the reservation would wait longer than {@code TOURCMS_RATE_LIMIT_MAX_WAIT_MS},
+ * the call fails at once with {@link RateLimitExceededException}.
+ * <p>
+ * The rate adapts to TourCMS: a 429, a 503 with {@code Retry-After} or an exhausted {@code X-RateLimit-Remaining}
+ * halves it and honours {@code Retry-After}, and every successful call recovers a little of the configured rate.
+ * A 503 without {@code Retry-After} is an outage, not throttling, and left to the circuit breaker.
+ */
+public class TourCmsRateLimiter {
+
+    private static final String TAG = "TourCmsRateLimiter";
+
+    private static final double RATE_PER_SECOND = System.getenv("TOURCMS_RATE_LIMIT_PER_SECOND") != null
+            ? Double.parseDouble(System.getenv("TOURCMS_RATE_LIMIT_PER_SECOND"))
+            : 5.0;
+
+    private static final double BURST = System.getenv("TOURCMS_RATE_LIMIT_BURST") != null
+            ? Double.parseDouble(System.getenv("TOURCMS_RATE_LIMIT_BURST"))
+            : 10.0;
+
+    private static final long MAX_WAIT_MILLIS = System.getenv("TOURCMS_RATE_LIMIT_MAX_WAIT_MS") != null
+            ? Long.parseLong(System.getenv("TOURCMS_RATE_LIMIT_MAX_WAIT_MS"))
+            : 3000L;
+
+    private static final double MIN_RATE_PER_SECOND = RATE_PER_SECOND / 10;
+    private static final double RECOVERY_PER_SUCCESS = RATE_PER_SECOND / 50;
+    private static final long DEFAULT_BACKOFF_MILLIS = 5000L;
+
+    private static final ConcurrentMap<String, TourCmsRateLimiter> LIMITERS = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService RELEASES = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "tourcms-rate-limiter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String name;
+    private double ratePerSecond = RATE_PER_SECOND;
+    private double tokens = BURST;
+    private long lastRefillNanos = System.nanoTime();
+
+    private TourCmsRateLimiter(String name) {
+        this.name = name;
+    }
+
+    public static TourCmsRateLimiter forChannel(String marketplaceId, String channelId) {
+        return LIMITERS.computeIfAbsent(marketplaceId + ":" + channelId, TourCmsRateLimiter::new);
+    }
+
+    /**
+     * @return completes when the call may be sent, or fails with {@link RateLimitExceededException}
+     */
+    public CompletableFuture<Void> acquire() {
+        long waitMillis = reserve();
+        if (waitMillis < 0) {
+            CompletableFuture<Void> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(new RateLimitExceededException("TourCMS rate limit reached for channel " + name, retryAfterMillis()));
+            return rejected;
+        }
+        if (waitMillis == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<Void> released = new CompletableFuture<>();
+        RELEASES.schedule(() -> released.complete(null), waitMillis, TimeUnit.MILLISECONDS);
+        return released;
+    }
+
+    /**
+     * @return milliseconds until the reserved token is available, or -1 if that is beyond the wait budget
+     */
+    private synchronized long reserve() {
+        refill();
+        long waitMillis = tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) * 1000 / ratePerSecond);
+        if (waitMillis > MAX_WAIT_MILLIS) {
+            return -1;
+        }
+        // Going negative is the reservation: later callers queue behind this one
+        tokens -= 1;
+        return waitMillis;
+    }
+
+    /**
+     * For optional work, which must only use what Bokun traffic leaves over.
+     *
+     * @return true if more than {@code reservedTokens} tokens are available right now
+     */
+    public synchronized boolean hasSpareTokens(double reservedTokens) {
+        refill();
+        return tokens >= reservedTokens + 1;
+    }
+
+    synchronized long retryAfterMillis() {
+        refill();
+        return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) * 1000 / ratePerSecond);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(BURST, tokens + (now - lastRefillNanos) / 1e9 * ratePerSecond);
+        lastRefillNanos = now;
+    }
+
+    /**
+     * Adapts the bucket to what TourCMS reported for a call. Throttling statuses are turned into
+     * {@link RateLimitExceededException} by the caller.
+     *
+     * @return true if TourCMS throttled the call
+     */
+    public boolean onResponse(Response response) {
+        if (response.code() == 429 || response.code() == 503 && response.header("Retry-After") != null) {
+            onThrottled(parseRetryAfterMillis(response.header("Retry-After")));
+            return true;
+        }
+
+        String remaining = response.header("X-RateLimit-Remaining");
+        if ("0".equals(remaining)) {
+            onThrottled(parseRetryAfterMillis(response.header("Retry-After")));
+            return false;
+        }
+        synchronized (this) {
+            refill();
+            ratePerSecond = Math.min(RATE_PER_SECOND, ratePerSecond + RECOVERY_PER_SUCCESS);
+            if (remaining != null && remaining.matches("\\d+")) {
+                // Never hand out more than TourCMS says is left
+                tokens = Math.min(tokens, Long.parseLong(remaining));
+            }
+        }
+        return false;
+    }
+
+    private synchronized void onThrottled(long retryAfterMillis) {
+        refill();
+        double previousRate = ratePerSecond;
+        ratePerSecond = Math.max(MIN_RATE_PER_SECOND, ratePerSecond / 2);
+        // Push the bucket into debt so nothing is sent before TourCMS allows it again
+        tokens = Math.min(tokens, -retryAfterMillis / 1000.0 * ratePerSecond);
+        AppLogger.warn(TAG, String.format("Throttled by TourCMS on %s: %.2f -> %.2f req/s, backing off %d ms", name, previousRate, ratePerSecond, retryAfterMillis));
+    }
+
+    private static long parseRetryAfterMillis(String retryAfter) {
+        if (retryAfter != null && retryAfter.trim().matches("\\d+")) {
+            return Long.parseLong(retryAfter.trim()) * 1000;
+        }
+        return DEFAULT_BACKOFF_MILLIS;
+    }
+}
@@ -0,0 +1,117 @@
+package io.bokun.inventory.plugin.tourcms.api;
+
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+/**
+ * Retry and hedging settings for idempotent TourCMS reads, shared by all clients.
+ * <p>
+ * Retries use exponential backoff with full jitter and draw from one global budget: every read deposits
+ * {@code TOURCMS_RETRY_BUDGET_RATIO} of a token, every retry or hedge takes a whole one. When TourCMS is
+ * down for everybody the budget runs dry quickly, and we stop adding load to an outage.
+ * <p>
+ * Hedge delays follow the p95 latency of the endpoint, so only the slowest ~5% of calls get a second request.
+ */
+final class TourCmsRetryPolicy {
+
+    static final int MAX_ATTEMPTS = System.getenv("TOURCMS_RETRY_MAX_ATTEMPTS") != null
+            ? Integer.parseInt(System.getenv("TOURCMS_RETRY_MAX_ATTEMPTS"))
+            : 3;
+
+    private static final long BASE_DELAY_MILLIS = System.getenv("TOURCMS_RETRY_BASE_DELAY_MS") != null
+            ? Long.parseLong(System.getenv("TOURCMS_RETRY_BASE_DELAY_MS"))
+            : 200L;
+
+    private static final long MAX_DELAY_MILLIS = System.getenv("TOURCMS_RETRY_MAX_DELAY_MS") != null
+            ? Long.parseLong(System.getenv("TOURCMS_RETRY_MAX_DELAY_MS"))
+            : 2000L;
+
+    private static final double BUDGET_RATIO = System.getenv("TOURCMS_RETRY_BUDGET_RATIO") != null
+            ? Double.parseDouble(System.getenv("TOURCMS_RETRY_BUDGET_RATIO"))
+            : 0.1;
+
+    static final boolean HEDGE_ENABLED = System.getenv("TOURCMS_HEDGE_ENABLED") != null
+            && Boolean.parseBoolean(System.getenv("TOURCMS_HEDGE_ENABLED"));
+
+    private static final long HEDGE_MIN_DELAY_MILLIS = System.getenv("TOURCMS_HEDGE_MIN_DELAY_MS") != null
+            ? Long.parseLong(System.getenv("TOURCMS_HEDGE_MIN_DELAY_MS"))
+            : 100L;
+
+    private static final double MAX_BUDGET = 20;
+    private static final int LATENCY_SAMPLES = 256;
+    private static final int MIN_LATENCY_SAMPLES = 20;
+
+    private static final ConcurrentMap<String, LatencyWindow> LATENCIES = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "tourcms-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static double budget = MAX_BUDGET / 2;
+
+    private TourCmsRetryPolicy() {
+    }
+
+    static synchronized void onRequest() {
+        budget = Math.min(MAX_BUDGET, budget + BUDGET_RATIO);
+    }
+
+    /**
+     * @return true if the global budget allows one more retry or hedge
+     */
+    static synchronized boolean tryAcquire() {
+        if (budget < 1) {
+            return false;
+        }
+        budget -= 1;
+        return true;
+    }
+
+    /**
+     * @param attempt attempts made so far, 1 for the first retry
+     */
+    static long backoffMillis(int attempt) {
+        long cap = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << Math.min(attempt - 1, 20));
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    static void schedule(Runnable task, long delayMillis) {
+        TIMER.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    static void recordLatency(String endpoint, long millis) {
+        LATENCIES.computeIfAbsent(endpoint, k -> new LatencyWindow()).add(millis);
+    }
+
+    /**
+     * @return when to send a hedge for the endpoint, or -1 while there are too few samples to tell
+     */
+    static long hedgeDelayMillis(String endpoint) {
+        LatencyWindow window = LATENCIES.get(endpoint);
+        long p95 = window != null ? window.p95() : -1;
+        return p95 < 0 ? -1 : Math.max(HEDGE_MIN_DELAY_MILLIS, p95);
+    }
+
+    private static class LatencyWindow {
+        private final long[] samples = new long[LATENCY_SAMPLES];
+        private int count;
+        private int next;
+
+        synchronized void add(long millis) {
+            samples[next] = millis;
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+        }
+
+        synchronized long p95() {
+            if (count < MIN_LATENCY_SAMPLES) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.ceil(count * 0.95) - 1];
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package io.bokun.inventory.plugin.tourcms.api;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * TourCMS can't be called right now, but may be soon (rate limit, open circuit breaker).
+ * Callers should answer "try later" rather than an empty or unavailable result.
+ */
+public class TourCmsUnavailableException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfterMillis;
+
+    public TourCmsUnavailableException(String message, long retryAfterMillis) {
+        super(message);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    /**
+     * @return the unavailability behind a (possibly wrapped) future failure, or null
+     */
+    public static TourCmsUnavailableException from(Throwable error) {
+        Throwable cause = error;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause instanceof TourCmsUnavailableException ? (TourCmsUnavailableException) cause : null;
+    }
+}
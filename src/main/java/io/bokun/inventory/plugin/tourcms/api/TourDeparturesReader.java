@@ -0,0 +1,79 @@
+package io.bokun.inventory.plugin.tourcms.api;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Consumer;
+
+/**
+ * StAX reader for /c/tour/datesprices/dep/show.xml responses.
+ * <p>
+ * Departures are pulled off the stream one at a time and handed to a consumer, so only a single
+ * departure is held in memory no matter how many the response contains.
+ */
+class TourDeparturesReader {
+
+    private static final String TOUR = "tour";
+    private static final String DATES_AND_PRICES = "dates_and_prices";
+    private static final String DEPARTURE = "departure";
+
+    private final XmlMapper xmlMapper;
+
+    TourDeparturesReader(XmlMapper xmlMapper) {
+        this.xmlMapper = xmlMapper;
+    }
+
+    /**
+     * @return the rest of the response (tour fields, total_departure_count, ...) in the same shape
+     * as a fully decoded response, just without the departure entries
+     */
+    ObjectNode read(InputStream xmlStream, Consumer<JsonNode> departureConsumer) throws IOException {
+        XMLStreamReader reader = null;
+        try {
+            reader = xmlMapper.getFactory().getXMLInputFactory().createXMLStreamReader(xmlStream);
+            ObjectNode root = xmlMapper.createObjectNode();
+            // Path from the document element down to the current container: response > tour > dates_and_prices
+            Deque<ObjectNode> containers = new ArrayDeque<>();
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    int depth = containers.size();
+                    if (depth == 0) {
+                        containers.push(root);
+                    } else if ((depth == 1 && TOUR.equals(name)) || (depth == 2 && DATES_AND_PRICES.equals(name))) {
+                        containers.push(containers.peek().putObject(name));
+                    } else if (depth == 3 && DEPARTURE.equals(name)) {
+                        // Leaves the reader on the departure's END_ELEMENT
+                        departureConsumer.accept(xmlMapper.readValue(reader, JsonNode.class));
+                    } else {
+                        containers.peek().set(name, xmlMapper.readValue(reader, JsonNode.class));
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    containers.pop();
+                }
+            }
+
+            return root;
+        } catch (XMLStreamException e) {
+            throw new IOException("Failed to read tour departures", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException ignored) {
+                    // The underlying stream is closed by the caller
+                }
+            }
+        }
+    }
+}
@@ -16,8 +16,6 @@ public class WebhookClient {
     private static final OkHttpClient httpClient = new OkHttpClient();
 
     public static CompletableFuture<Void> sendWebhook(Map<String, String> data) {
-        CompletableFuture<Void> future = new CompletableFuture<>();
-
         // Tạo JSON body
         String jsonBody = "{";
         for (Map.Entry<String, String> entry : data.entrySet()) {
@@ -25,16 +23,27 @@ public class WebhookClient {
         }
         jsonBody = jsonBody.substring(0, jsonBody.length() - 2) + "}";
 
+        AppLogger.info(TAG, "Sending webhook with data: " + jsonBody);
+
+        return postJson(WEBHOOK_URL, jsonBody);
+    }
+
+    /**
+     * POSTs a JSON body to the URL.
+     *
+     * @return fails with an {@link IOException} if the call fails or isn't answered with a 2xx
+     */
+    public static CompletableFuture<Void> postJson(String url, String jsonBody) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+
         // Cấu hình request
         RequestBody body = RequestBody.create(jsonBody, MediaType.parse("application/json"));
         Request request = new Request.Builder()
-                .url(WEBHOOK_URL)
+                .url(url)
                 .post(body)
                 .header("Content-Type", "application/json")
                 .build();
 
-        AppLogger.info(TAG, "Sending webhook with data: " + jsonBody);
-
         // Thực hiện gửi request
         httpClient.newCall(request).enqueue(new Callback() {
             @Override
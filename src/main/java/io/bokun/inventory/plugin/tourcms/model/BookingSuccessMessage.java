@@ -1,7 +1,6 @@
 package io.bokun.inventory.plugin.tourcms.model;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import io.bokun.inventory.plugin.api.rest.ConfirmBookingRequest;
 import io.bokun.inventory.plugin.tourcms.util.AppLogger;
 
@@ -11,7 +10,6 @@ import java.util.List;
 public class BookingSuccessMessage {
 
     private static final String TAG = "BookingSuccessMessage";
-    private static final ObjectMapper MAPPER = new ObjectMapper();
 
     protected ConfirmBookingRequest request;
     protected String webhookStatus;
@@ -51,12 +49,10 @@ public class BookingSuccessMessage {
         protected String voucherLabel;
     }
 
-    public BookingSuccessMessage(ConfirmBookingRequest request, String json, String webhookStatus) {
+    public BookingSuccessMessage(ConfirmBookingRequest request, JsonNode root, String webhookStatus) {
         this.request = request;
         this.webhookStatus = webhookStatus;
         try {
-            JsonNode root = MAPPER.readTree(json);
-
             this.bookingId = root.path("booking").path("booking_id").asText();
             this.bookingUuid = root.path("booking").path("booking_uuid").asText();
             this.channelId = root.path("booking").path("channel_id").asText();
@@ -76,7 +72,7 @@ public class BookingSuccessMessage {
                 components.add(parseComponent(componentNode));
             }
         } catch (Exception e) {
-            AppLogger.error(TAG, "Failed to parse JSON for BookingSuccessMessage", e);
+            AppLogger.error(TAG, "Failed to read booking for BookingSuccessMessage", e);
         }
     }
 
@@ -0,0 +1,338 @@
+package io.bokun.inventory.plugin.tourcms.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.bokun.inventory.plugin.api.rest.*;
+import io.bokun.inventory.plugin.tourcms.model.ProductRateMapping;
+import io.bokun.inventory.plugin.tourcms.util.Mapping;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Folds TourCMS departures into Bokun availability entries, one departure at a time,
+ * keyed by start date, start time and rate.
+ * <p>
+ * Keys are packed into a long (epoch day, start time slot, rate slot) and looked up in an open-addressing table, so
+ * no key string is built per rate. Dates and times are parsed once per distinct value and their {@link DateYMD} and
+ * {@link Time} shared by every entry. Lists of more than {@code TOURCMS_AGGREGATOR_PARALLEL_THRESHOLD} departures are
+ * split and folded on the common fork-join pool, then merged in departure order, which gives the same result.
+ */
+public class AvailabilityAggregator {
+
+    private static final int PARALLEL_THRESHOLD = System.getenv("TOURCMS_AGGREGATOR_PARALLEL_THRESHOLD") != null
+            ? Integer.parseInt(System.getenv("TOURCMS_AGGREGATOR_PARALLEL_THRESHOLD"))
+            : 2000;
+
+    private final ProductRateMapping productRateMapping;
+    private final String currency;
+    private final String defaultRateId;
+
+    private final Map<String, Day> days = new HashMap<>();
+    private final Map<String, Integer> timeSlots = new HashMap<>();
+    private final List<Time> times = new ArrayList<>();
+    private final Map<String, Integer> rateSlots = new HashMap<>();
+    private final List<Entry> entries;
+    private final LongIntTable index;
+
+    public AvailabilityAggregator(ProductRateMapping productRateMapping, String currency) {
+        this(productRateMapping, currency, 16);
+    }
+
+    /**
+     * @param expectedDepartures sizes the tables, so they don't grow while folding
+     */
+    public AvailabilityAggregator(ProductRateMapping productRateMapping, String currency, int expectedDepartures) {
+        this.productRateMapping = productRateMapping;
+        this.currency = currency;
+        this.defaultRateId = productRateMapping.getRates().stream().findFirst().map(Rate::getId).orElse(null);
+        this.entries = new ArrayList<>(expectedDepartures);
+        this.index = new LongIntTable(expectedDepartures);
+    }
+
+    /**
+     * Folds the cached departures, splitting the work over the common fork-join pool if there are many.
+     */
+    public void acceptAll(List<AvailabilityCache.Departure> departures) {
+        if (departures.size() <= PARALLEL_THRESHOLD) {
+            departures.forEach(departure -> accept(departure.getNode(), departure.getCapacity()));
+            return;
+        }
+        merge(ForkJoinPool.commonPool().invoke(new FoldTask(productRateMapping, currency, departures)));
+    }
+
+    /**
+     * Skips a departure whose {@code spaces_remaining} isn't a number, as the live availability check does.
+     */
+    public void accept(JsonNode departure) {
+        int spacesRemaining = Mapping.spacesRemaining(departure);
+        if (spacesRemaining >= 0) {
+            accept(departure, spacesRemaining);
+        }
+    }
+
+    /**
+     * @param capacity spaces left on the departure, overriding its {@code spaces_remaining}
+     */
+    public void accept(JsonNode departure, int capacity) {
+        String startDate = departure.path("start_date").asText(null);
+        String startTime = departure.path("start_time").asText(null);
+        String supplierNote = departure.path("supplier_note").asText();
+
+        if (startDate == null || startTime == null) {
+            return;
+        }
+
+        Day day = day(startDate);
+        int timeSlot = timeSlot(startTime);
+        String rateId = !supplierNote.isEmpty() ? supplierNote : defaultRateId;
+        long rateKey = pack(day.epochDay, timeSlot, rateSlot(rateId));
+
+        // Main Price
+        JsonNode mainPriceNode = departure.path("main_price");
+        if (!mainPriceNode.isMissingNode()) {
+            RateWithPrice mainRate = Mapping.mapRate(productRateMapping, rateId, mainPriceNode, currency, true);
+            Entry entry = entry(rateKey, day, timeSlot, startTime, capacity, mainRate);
+            if (mainRate.getPricePerBooking() != null) {
+                entry.rate().setPricePerBooking(mainRate.getPricePerBooking());
+            }
+        }
+
+        // Extra Rates
+        JsonNode extraRatesNode = departure.path("extra_rates").path("rate");
+        if (extraRatesNode.isArray()) {
+            for (JsonNode extraRateNode : extraRatesNode) {
+                if (!extraRateNode.isMissingNode()) {
+                    RateWithPrice extraRate = Mapping.mapRate(productRateMapping, rateId, extraRateNode, currency, false);
+                    entry(rateKey, day, timeSlot, startTime, capacity, extraRate);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return entries with capacity left, sorted by date and time
+     */
+    public List<ProductAvailabilityWithRatesResponse> getResults() {
+        List<Entry> sorted = new ArrayList<>(entries);
+        // Stable, entries of the same date and time keep the order they were first seen in
+        sorted.sort(Comparator.comparingLong(entry -> entry.sortKey));
+
+        List<ProductAvailabilityWithRatesResponse> results = new ArrayList<>(sorted.size());
+        for (Entry entry : sorted) {
+            if (entry.capacity > 0) {
+                results.add(entry.response);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Adds the entries of an aggregator that folded the departures following this one's.
+     */
+    private void merge(AvailabilityAggregator next) {
+        for (Entry nextEntry : next.entries) {
+            RateWithPrice nextRate = nextEntry.rate();
+            Entry entry = entry(pack(nextEntry.day.epochDay, timeSlot(nextEntry.startTime), rateSlot(nextRate.getRateId())),
+                    day(nextEntry.day.startDate), timeSlot(nextEntry.startTime), nextEntry.startTime, nextEntry.capacity, nextRate);
+            if (nextRate.getPricePerBooking() != null) {
+                entry.rate().setPricePerBooking(nextRate.getPricePerBooking());
+            }
+        }
+    }
+
+    /**
+     * @return the entry of the key, created with the rate if there is none; otherwise the rate's prices are added to it
+     */
+    private Entry entry(long key, Day day, int timeSlot, String startTime, int capacity, RateWithPrice rate) {
+        int position = index.get(key);
+        if (position < 0) {
+            Time time = times.get(timeSlot);
+            ProductAvailabilityWithRatesResponse response = new ProductAvailabilityWithRatesResponse();
+            response.setCapacity(capacity);
+            response.setDate(day.date);
+            response.setTime(time);
+            response.setRates(new ArrayList<>(1));
+            response.getRates().add(rate);
+
+            long minuteOfDay = time != null ? time.getHour() * 60L + time.getMinute() : -1L;
+            Entry entry = new Entry(response, day, startTime, capacity, day.epochDay * 1441L + minuteOfDay + 1);
+            index.put(key, entries.size());
+            entries.add(entry);
+            return entry;
+        }
+
+        Entry entry = entries.get(position);
+        // Merge pricingCategoryWithPrice
+        entry.rate().getPricePerPerson()
+                .getPricingCategoryWithPrice()
+                .addAll(rate.getPricePerPerson().getPricingCategoryWithPrice());
+        return entry;
+    }
+
+    private Day day(String startDate) {
+        return days.computeIfAbsent(startDate, Day::new);
+    }
+
+    private int timeSlot(String startTime) {
+        Integer slot = timeSlots.get(startTime);
+        if (slot == null) {
+            Time time = null;
+            if (startTime.contains(":")) {
+                String[] timeParts = startTime.split(":");
+                time = new Time();
+                time.setHour(Integer.parseInt(timeParts[0]));
+                time.setMinute(Integer.parseInt(timeParts[1]));
+            }
+            slot = times.size();
+            times.add(time);
+            timeSlots.put(startTime, slot);
+        }
+        return slot;
+    }
+
+    private int rateSlot(String rateId) {
+        Integer slot = rateSlots.get(rateId);
+        if (slot == null) {
+            slot = rateSlots.size();
+            rateSlots.put(rateId, slot);
+        }
+        return slot;
+    }
+
+    private static long pack(long epochDay, int timeSlot, int rateSlot) {
+        return epochDay << 32 | (long) (timeSlot & 0xFFFF) << 16 | (rateSlot & 0xFFFF);
+    }
+
+    private static final class Day {
+        private final String startDate;
+        private final long epochDay;
+        private final DateYMD date;
+
+        Day(String startDate) {
+            LocalDate parsed = LocalDate.parse(startDate);
+            this.startDate = startDate;
+            this.epochDay = parsed.toEpochDay();
+            this.date = new DateYMD();
+            date.setYear(parsed.getYear());
+            date.setMonth(parsed.getMonthValue());
+            date.setDay(parsed.getDayOfMonth());
+        }
+    }
+
+    private static final class Entry {
+        private final ProductAvailabilityWithRatesResponse response;
+        private final Day day;
+        private final String startTime;
+        private final int capacity;
+        private final long sortKey;
+
+        Entry(ProductAvailabilityWithRatesResponse response, Day day, String startTime, int capacity, long sortKey) {
+            this.response = response;
+            this.day = day;
+            this.startTime = startTime;
+            this.capacity = capacity;
+            this.sortKey = sortKey;
+        }
+
+        RateWithPrice rate() {
+            return response.getRates().get(0);
+        }
+    }
+
+    /**
+     * Folds one half of the departures each, down to {@link #PARALLEL_THRESHOLD}, and merges the halves in order.
+     */
+    private static final class FoldTask extends RecursiveTask<AvailabilityAggregator> {
+        private static final long serialVersionUID = 1L;
+
+        private final ProductRateMapping productRateMapping;
+        private final String currency;
+        private final List<AvailabilityCache.Departure> departures;
+
+        FoldTask(ProductRateMapping productRateMapping, String currency, List<AvailabilityCache.Departure> departures) {
+            this.productRateMapping = productRateMapping;
+            this.currency = currency;
+            this.departures = departures;
+        }
+
+        @Override
+        protected AvailabilityAggregator compute() {
+            if (departures.size() <= PARALLEL_THRESHOLD) {
+                AvailabilityAggregator aggregator = new AvailabilityAggregator(productRateMapping, currency, departures.size());
+                departures.forEach(departure -> aggregator.accept(departure.getNode(), departure.getCapacity()));
+                return aggregator;
+            }
+            int middle = departures.size() / 2;
+            FoldTask second = new FoldTask(productRateMapping, currency, departures.subList(middle, departures.size()));
+            second.fork();
+            AvailabilityAggregator first = new FoldTask(productRateMapping, currency, departures.subList(0, middle)).compute();
+            first.merge(second.join());
+            return first;
+        }
+    }
+
+    /**
+     * Open-addressing map of packed keys to entry positions, without boxing.
+     */
+    private static final class LongIntTable {
+        private long[] keys;
+        // Position + 1, 0 for a free slot
+        private int[] values;
+        private int size;
+
+        LongIntTable(int expectedSize) {
+            int capacity = Integer.highestOneBit(Math.max(expectedSize * 2, 16) - 1) << 1;
+            keys = new long[capacity];
+            values = new int[capacity];
+        }
+
+        /**
+         * @return the position of the key, or -1
+         */
+        int get(long key) {
+            int mask = keys.length - 1;
+            for (int slot = hash(key) & mask; values[slot] != 0; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return values[slot] - 1;
+                }
+            }
+            return -1;
+        }
+
+        void put(long key, int position) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int slot = hash(key) & mask;
+            while (values[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (values[slot] == 0) {
+                size++;
+            }
+            keys[slot] = key;
+            values[slot] = position + 1;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldValues.length * 2];
+            size = 0;
+            for (int slot = 0; slot < oldKeys.length; slot++) {
+                if (oldValues[slot] != 0) {
+                    put(oldKeys[slot], oldValues[slot] - 1);
+                }
+            }
+        }
+
+        private static int hash(long key) {
+            long mixed = key * 0x9E3779B97F4A7C15L;
+            return (int) (mixed ^ mixed >>> 32);
+        }
+    }
+}
@@ -0,0 +1,816 @@
+package io.bokun.inventory.plugin.tourcms.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.bokun.inventory.plugin.tourcms.api.TourCmsClient;
+import io.bokun.inventory.plugin.tourcms.api.TourCmsPager;
+import io.bokun.inventory.plugin.tourcms.util.AppLogger;
+import io.bokun.inventory.plugin.tourcms.util.Mapping;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * TourCMS departures per (marketplace, channel, tour), kept per day.
+ * <p>
+ * A day is covered once a departures query spanning it returned, even with no departure on it, and is fetched
+ * again once older than {@code TOURCMS_AVAILABILITY_CACHE_TTL_SECONDS}. Bookings made through this plugin adjust
+ * the cached capacity in place: pax are taken off when a booking is committed and given back when it is cancelled,
+ * so reads between two fetches never offer seats we sold ourselves. The next fetch replaces the adjusted values
+ * with what TourCMS reports.
+ * <p>
+ * Days restored from a {@link CacheSnapshot} are served while stale and fetched again in the background.
+ * <p>
+ * Days are fetched in windows of {@code TOURCMS_AVAILABILITY_WINDOW_MONTHS} calendar months, concurrently, so a
+ * year-long range is a dozen small queries rather than one deep one, and only the windows holding expired days are
+ * queried again. A window is always fetched whole, from today at the earliest, whatever part of it a request
+ * covers, so requests that need the same window while it is being fetched wait for that one fetch.
+ */
+public class AvailabilityCache {
+
+    private static final String TAG = AvailabilityCache.class.getSimpleName();
+
+    private static final long TTL_MILLIS = (System.getenv("TOURCMS_AVAILABILITY_CACHE_TTL_SECONDS") != null
+            ? Long.parseLong(System.getenv("TOURCMS_AVAILABILITY_CACHE_TTL_SECONDS"))
+            : 300L) * 1000L;
+
+    private static final long MAX_TOURS = System.getenv("TOURCMS_AVAILABILITY_CACHE_MAX_TOURS") != null
+            ? Long.parseLong(System.getenv("TOURCMS_AVAILABILITY_CACHE_MAX_TOURS"))
+            : 1000L;
+
+    private static final int WINDOW_MONTHS = System.getenv("TOURCMS_AVAILABILITY_WINDOW_MONTHS") != null
+            ? Integer.parseInt(System.getenv("TOURCMS_AVAILABILITY_WINDOW_MONTHS"))
+            : 1;
+
+    private static final int PER_PAGE = 100;
+
+    private final Cache<TourKey, TourAvailability> tours = CacheBuilder.newBuilder()
+            .maximumSize(MAX_TOURS)
+            .expireAfterAccess(1, TimeUnit.DAYS)
+            .build();
+
+    // Bookings committed through this plugin, by marketplace:channel:bookingId
+    private final ConcurrentMap<String, Allocation> ledger = new ConcurrentHashMap<>();
+    // The same allocations by tour, so a fetch doesn't scan the whole ledger
+    private final ConcurrentMap<TourKey, Set<Allocation>> allocationsByTour = new ConcurrentHashMap<>();
+
+    // Window fetches in flight, by tour key and window
+    private final ConcurrentMap<String, CompletableFuture<Void>> windowFetches = new ConcurrentHashMap<>();
+
+    // Told the start times a fetch changed, see addChangeListener
+    private final List<BiConsumer<TourKey, List<Change>>> changeListeners = new CopyOnWriteArrayList<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "availability-cache-sweep");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public AvailabilityCache() {
+        sweeper.scheduleWithFixedDelay(this::sweep, TTL_MILLIS, TTL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the departures of the tour between {@code from} and {@code to} (inclusive), in date order, starting
+     * from the first day with spaces left. Only the days missing or expired are fetched from TourCMS.
+     */
+    public CompletableFuture<TourDepartures> getDepartures(TourCmsClient client, String tourId, LocalDate from, LocalDate to) {
+        TourKey key = TourKey.of(client, tourId);
+        TourAvailability tour = tourFor(key);
+
+        long now = System.currentTimeMillis();
+        List<LocalDate[]> stale = tour.staleWindows(from, to, now, TTL_MILLIS);
+        if (stale.isEmpty()) {
+            hits.incrementAndGet();
+            return CompletableFuture.completedFuture(tour.snapshot(from, to));
+        }
+        if (tour.isServable(from, to, now)) {
+            hits.incrementAndGet();
+            revalidate(client, key, tour, stale);
+            return CompletableFuture.completedFuture(tour.snapshot(from, to));
+        }
+        misses.incrementAndGet();
+        return fetchWindows(client, key, stale)
+                .thenApply(ignored -> tourFor(key).snapshot(from, to));
+    }
+
+    /**
+     * Fetches the first window of the range holding days cached longer ago than {@code maxAgeMillis}, ahead of their
+     * expiry. One window per call, so a refresh costs a single departures query; call again for the next.
+     *
+     * @return completes at once if no day is that old
+     */
+    public CompletableFuture<Void> refresh(TourCmsClient client, String tourId, LocalDate from, LocalDate to, long maxAgeMillis) {
+        TourKey key = TourKey.of(client, tourId);
+        List<LocalDate[]> stale = tourFor(key).staleWindows(from, to, System.currentTimeMillis(), maxAgeMillis);
+        if (stale.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return fetchWindows(client, key, stale.subList(0, 1));
+    }
+
+    /**
+     * Lowest capacity over the days of the range that have departures, taking the best departure of each day,
+     * as TourCMS answers a {@code distinct_start_dates} search.
+     *
+     * @return the capacity, or null if the range isn't cached or has expired
+     */
+    public Long getMinCapacity(TourCmsClient client, String tourId, LocalDate from, LocalDate to) {
+        TourKey key = TourKey.of(client, tourId);
+        TourAvailability tour = tours.getIfPresent(key);
+        long now = System.currentTimeMillis();
+        List<LocalDate[]> stale = tour != null ? tour.staleWindows(from, to, now, TTL_MILLIS) : null;
+        if (tour == null || !stale.isEmpty() && !tour.isServable(from, to, now)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (!stale.isEmpty()) {
+            revalidate(client, key, tour, stale);
+        }
+        hits.incrementAndGet();
+        return tour.minCapacity(from, to);
+    }
+
+    /**
+     * Takes the pax of a committed booking off the cached departure. Calling it again for the same booking
+     * does nothing.
+     *
+     * @param paxByRate booked pax per Bokun rate id
+     */
+    public void allocate(TourCmsClient client, String bookingId, String tourId, LocalDate date, String startTime, Map<String, Integer> paxByRate) {
+        Allocation allocation = new Allocation(TourKey.of(client, tourId), date, normalizeTime(startTime), paxByRate, System.currentTimeMillis());
+        if (ledger.putIfAbsent(ledgerKey(client, bookingId), allocation) == null) {
+            index(allocation);
+            AppLogger.info(TAG, String.format("Allocated booking %s: tour %s on %s %s, %s", bookingId, tourId, date, startTime, paxByRate));
+            apply(allocation, -1);
+        }
+    }
+
+    /**
+     * Gives back the pax of a booking allocated earlier; unknown bookings are ignored.
+     */
+    public void release(TourCmsClient client, String bookingId) {
+        Allocation allocation = ledger.remove(ledgerKey(client, bookingId));
+        if (allocation != null) {
+            unindex(allocation);
+            AppLogger.info(TAG, String.format("Released booking %s: tour %s on %s %s, %s", bookingId, allocation.key.tourId, allocation.date, allocation.startTime, allocation.paxByRate));
+            apply(allocation, 1);
+        }
+    }
+
+    public void invalidate(String tourId) {
+        tours.asMap().keySet().removeIf(key -> key.tourId.equals(tourId));
+    }
+
+    public void invalidateAll() {
+        tours.invalidateAll();
+    }
+
+    /**
+     * Registers a listener told, after each fetch, which start times of the tour now have a different capacity or
+     * status than before it. Days cached for the first time are not reported.
+     */
+    void addChangeListener(BiConsumer<TourKey, List<Change>> listener) {
+        changeListeners.add(listener);
+    }
+
+    public Map<String, Object> metrics() {
+        int departures = 0;
+        for (TourAvailability tour : tours.asMap().values()) {
+            departures += tour.departureCount();
+        }
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("tours", tours.size());
+        metrics.put("departures", departures);
+        metrics.put("hits", hits.get());
+        metrics.put("misses", misses.get());
+        metrics.put("allocations", ledger.size());
+        return metrics;
+    }
+
+    private TourAvailability tourFor(TourKey key) {
+        try {
+            return tours.get(key, TourAvailability::new);
+        } catch (ExecutionException e) {
+            // The loader can't throw
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Fetches the windows concurrently, joining fetches of the same window already in flight.
+     */
+    private CompletableFuture<Void> fetchWindows(TourCmsClient client, TourKey key, List<LocalDate[]> windows) {
+        CompletableFuture<?>[] fetches = new CompletableFuture<?>[windows.size()];
+        for (int i = 0; i < fetches.length; i++) {
+            fetches[i] = fetchWindow(client, key, windows.get(i)[0], windows.get(i)[1]);
+        }
+        return CompletableFuture.allOf(fetches);
+    }
+
+    private CompletableFuture<Void> fetchWindow(TourCmsClient client, TourKey key, LocalDate from, LocalDate to) {
+        // Keyed on the window it ends, its start only differs for a request reaching into the past
+        String windowKey = key + ":" + to;
+        CompletableFuture<Void> window = new CompletableFuture<>();
+        CompletableFuture<Void> inFlight = windowFetches.putIfAbsent(windowKey, window);
+        if (inFlight != null) {
+            return inFlight;
+        }
+        fetch(client, key, from, to).whenComplete((ignored, error) -> {
+            windowFetches.remove(windowKey, window);
+            if (error != null) {
+                window.completeExceptionally(error);
+            } else {
+                window.complete(null);
+            }
+        });
+        return window;
+    }
+
+    private CompletableFuture<Void> fetch(TourCmsClient client, TourKey key, LocalDate from, LocalDate to) {
+        long startedAt = System.currentTimeMillis();
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("id", key.tourId);
+        params.put("start_date_start", from.toString());
+        params.put("start_date_end", to.toString());
+        params.put("per_page", PER_PAGE);
+        params.put("page", 1);
+
+        // Slimmed as they come off the response, so a window holds only what the cache keeps until it is stored
+        List<JsonNode> departures = new ArrayList<>();
+        return client.streamTourDeparturesAsync(params, departure -> departures.add(Departure.slim(departure)))
+                .thenCompose(responseNode -> {
+                    JsonNode tourNode = responseNode.path("tour");
+                    int total = tourNode.path("dates_and_prices").path("total_departure_count").asInt(0);
+                    int totalPages = (int) Math.ceil((double) total / PER_PAGE);
+
+                    return TourCmsPager.fetchPages(2, totalPages, pageNumber -> {
+                        Map<String, Object> pageParams = new HashMap<>(params);
+                        pageParams.put("page", pageNumber);
+                        List<JsonNode> pageDepartures = new ArrayList<>(PER_PAGE);
+                        return client.streamTourDeparturesAsync(pageParams, departure -> pageDepartures.add(Departure.slim(departure)))
+                                .thenApply(pageNode -> pageDepartures);
+                    }, departures::addAll).thenApply(ignored -> tourNode.path("sale_currency").asText(null));
+                })
+                .thenAccept(currency -> {
+                    TourAvailability tour = tourFor(key);
+                    Map<LocalDate, Day> replaced = tour.store(from, to, currency, departures, startedAt);
+                    // Bookings committed while the query was running may be missing from its result. If they
+                    // weren't, they are counted twice until the next fetch, which errs on the safe side
+                    Set<Allocation> allocations = allocationsByTour.get(key);
+                    if (allocations != null) {
+                        allocations.stream()
+                                .filter(allocation -> allocation.allocatedAt >= startedAt
+                                        && !allocation.date.isBefore(from) && !allocation.date.isAfter(to))
+                                .forEach(allocation -> apply(allocation, -1));
+                    }
+                    if (!changeListeners.isEmpty()) {
+                        // Compared once the ledger is applied again, so our own bookings don't show as changes
+                        List<Change> changes = tour.changesSince(replaced);
+                        if (!changes.isEmpty()) {
+                            changeListeners.forEach(listener -> listener.accept(key, changes));
+                        }
+                    }
+                    AppLogger.info(TAG, String.format("Cached %d departures of tour %s from %s to %s", departures.size(), key, from, to));
+                });
+    }
+
+    /**
+     * Fetches the stale windows of a tour in the background, once at a time per tour.
+     */
+    private void revalidate(TourCmsClient client, TourKey key, TourAvailability tour, List<LocalDate[]> stale) {
+        if (!tour.revalidating.compareAndSet(false, true)) {
+            return;
+        }
+        LocalDate from = stale.get(0)[0];
+        LocalDate to = stale.get(stale.size() - 1)[1];
+        fetchWindows(client, key, stale).whenComplete((ignored, error) -> {
+            tour.revalidating.set(false);
+            if (error != null) {
+                AppLogger.warn(TAG, String.format("Couldn't revalidate tour %s from %s to %s: %s", key, from, to, error.getMessage()));
+            }
+        });
+    }
+
+    void writeSnapshot(DataOutputStream out) throws IOException {
+        Map<TourKey, TourAvailability> copy = new HashMap<>(tours.asMap());
+        out.writeInt(copy.size());
+        for (Map.Entry<TourKey, TourAvailability> entry : copy.entrySet()) {
+            CacheSnapshot.writeTourKey(out, entry.getKey());
+            entry.getValue().writeSnapshot(out);
+        }
+
+        List<Map.Entry<String, Allocation>> allocations = new ArrayList<>(ledger.entrySet());
+        out.writeInt(allocations.size());
+        for (Map.Entry<String, Allocation> entry : allocations) {
+            Allocation allocation = entry.getValue();
+            CacheSnapshot.writeString(out, entry.getKey());
+            CacheSnapshot.writeTourKey(out, allocation.key);
+            out.writeLong(allocation.date.toEpochDay());
+            CacheSnapshot.writeString(out, allocation.startTime);
+            out.writeLong(allocation.allocatedAt);
+            out.writeInt(allocation.paxByRate.size());
+            for (Map.Entry<String, Integer> pax : allocation.paxByRate.entrySet()) {
+                CacheSnapshot.writeString(out, pax.getKey());
+                out.writeInt(pax.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return number of departures restored
+     */
+    int readSnapshot(ByteBuffer in, long oldestFetchedAt) throws IOException {
+        LocalDate today = LocalDate.now();
+        int restored = 0;
+        int tourCount = in.getInt();
+        for (int i = 0; i < tourCount; i++) {
+            TourKey key = CacheSnapshot.readTourKey(in);
+            restored += tourFor(key).readSnapshot(in, today, oldestFetchedAt);
+        }
+
+        int allocationCount = in.getInt();
+        for (int i = 0; i < allocationCount; i++) {
+            String ledgerKey = CacheSnapshot.readString(in);
+            TourKey key = CacheSnapshot.readTourKey(in);
+            LocalDate date = LocalDate.ofEpochDay(in.getLong());
+            String startTime = CacheSnapshot.readString(in);
+            long allocatedAt = in.getLong();
+            int rateCount = in.getInt();
+            Map<String, Integer> paxByRate = new HashMap<>();
+            for (int j = 0; j < rateCount; j++) {
+                paxByRate.put(CacheSnapshot.readString(in), in.getInt());
+            }
+            if (!date.isBefore(today)) {
+                // Already applied to the restored capacities
+                Allocation allocation = new Allocation(key, date, startTime, paxByRate, allocatedAt);
+                if (ledger.putIfAbsent(ledgerKey, allocation) == null) {
+                    index(allocation);
+                }
+            }
+        }
+        return restored;
+    }
+
+    private void index(Allocation allocation) {
+        allocationsByTour.compute(allocation.key, (key, allocations) -> {
+            Set<Allocation> indexed = allocations != null ? allocations : ConcurrentHashMap.newKeySet();
+            indexed.add(allocation);
+            return indexed;
+        });
+    }
+
+    private void unindex(Allocation allocation) {
+        allocationsByTour.computeIfPresent(allocation.key, (key, allocations) -> {
+            allocations.remove(allocation);
+            return allocations.isEmpty() ? null : allocations;
+        });
+    }
+
+    private void apply(Allocation allocation, int sign) {
+        TourAvailability tour = tours.getIfPresent(allocation.key);
+        if (tour != null) {
+            tour.adjust(allocation.date, allocation.startTime, allocation.paxByRate, sign);
+        }
+    }
+
+    private void sweep() {
+        try {
+            long now = System.currentTimeMillis();
+            LocalDate today = LocalDate.now();
+            tours.asMap().values().forEach(tour -> tour.evict(today, now));
+            ledger.values().removeIf(allocation -> {
+                if (allocation.date.isBefore(today)) {
+                    unindex(allocation);
+                    return true;
+                }
+                return false;
+            });
+        } catch (RuntimeException e) {
+            AppLogger.error(TAG, "Couldn't sweep availability cache", e);
+        }
+    }
+
+    private static String ledgerKey(TourCmsClient client, String bookingId) {
+        return client.marketplaceId + ":" + client.channelId + ":" + bookingId;
+    }
+
+    private static String normalizeTime(String time) {
+        // TourCMS may send seconds, Bokun never does
+        return time != null && time.length() > 5 ? time.substring(0, 5) : time;
+    }
+
+    /**
+     * Departures of a tour as returned to callers; capacities are a copy taken when the snapshot was made.
+     */
+    public static final class TourDepartures {
+        private final String currency;
+        private final List<Departure> departures;
+
+        TourDepartures(String currency, List<Departure> departures) {
+            this.currency = currency;
+            this.departures = departures;
+        }
+
+        public String getCurrency() {
+            return currency;
+        }
+
+        public List<Departure> getDepartures() {
+            return departures;
+        }
+    }
+
+    /**
+     * One departure as kept in the cache, on a node holding only the fields the availability and rate mapping read.
+     */
+    public static final class Departure {
+        private static final String[] KEPT_FIELDS = {"start_date", "start_time", "supplier_note", "note", "status", "spaces_remaining", "main_price", "extra_rates"};
+
+        private final LocalDate date;
+        private final String startTime;
+        private final String rateId;
+        private final JsonNode node;
+        private int capacity;
+
+        Departure(LocalDate date, JsonNode node) {
+            this.date = date;
+            this.startTime = normalizeTime(node.path("start_time").asText());
+            this.rateId = node.path("supplier_note").asText();
+            this.node = node;
+            this.capacity = Mapping.spacesRemaining(node);
+        }
+
+        Departure(LocalDate date, JsonNode node, int capacity) {
+            this(date, node);
+            this.capacity = capacity;
+        }
+
+        private Departure(Departure other) {
+            this.date = other.date;
+            this.startTime = other.startTime;
+            this.rateId = other.rateId;
+            this.node = other.node;
+            this.capacity = other.capacity;
+        }
+
+        public String getStartTime() {
+            return startTime;
+        }
+
+        public LocalDate getDate() {
+            return date;
+        }
+
+        public JsonNode getNode() {
+            return node;
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        boolean isOpen() {
+            return Mapping.isOpen(node);
+        }
+
+        /**
+         * @return a copy of a TourCMS departure with only the fields the cache keeps
+         */
+        static JsonNode slim(JsonNode node) {
+            ObjectNode slim = Mapping.MAPPER.createObjectNode();
+            for (String field : KEPT_FIELDS) {
+                JsonNode value = node.get(field);
+                if (value != null) {
+                    slim.set(field, value);
+                }
+            }
+            return slim;
+        }
+    }
+
+    /**
+     * Capacity and status of one start time of a tour, before and after a fetch.
+     */
+    static final class Change {
+        final LocalDate date;
+        final String startTime;
+        final int previousCapacity;
+        final boolean previouslyOpen;
+        final int capacity;
+        final boolean open;
+
+        Change(LocalDate date, String startTime, int previousCapacity, boolean previouslyOpen, int capacity, boolean open) {
+            this.date = date;
+            this.startTime = startTime;
+            this.previousCapacity = previousCapacity;
+            this.previouslyOpen = previouslyOpen;
+            this.capacity = capacity;
+            this.open = open;
+        }
+    }
+
+    private static final class Day {
+        private final long fetchedAt;
+        private final List<Departure> departures;
+        // Read from a snapshot, served until fetched again even once older than the TTL
+        private final boolean restored;
+
+        Day(long fetchedAt, List<Departure> departures, boolean restored) {
+            this.fetchedAt = fetchedAt;
+            this.departures = departures;
+            this.restored = restored;
+        }
+
+        boolean isServable(long now) {
+            return now - fetchedAt < (restored ? CacheSnapshot.MAX_AGE_MILLIS : TTL_MILLIS);
+        }
+    }
+
+    private static final class Allocation {
+        private final TourKey key;
+        private final LocalDate date;
+        private final String startTime;
+        private final Map<String, Integer> paxByRate;
+        private final long allocatedAt;
+
+        Allocation(TourKey key, LocalDate date, String startTime, Map<String, Integer> paxByRate, long allocatedAt) {
+            this.key = key;
+            this.date = date;
+            this.startTime = startTime;
+            this.paxByRate = paxByRate;
+            this.allocatedAt = allocatedAt;
+        }
+    }
+
+    private static final class TourAvailability {
+        private final TreeMap<LocalDate, Day> days = new TreeMap<>();
+        private final AtomicBoolean revalidating = new AtomicBoolean();
+        private String currency;
+        // Built on first read after a change
+        private AvailabilityCalendar calendar;
+
+        /**
+         * @return in date order, the first and last day to fetch of each window holding a day of the range missing
+         * or older than {@code maxAgeMillis}: the whole window, from today at the earliest unless the stale day is
+         * before it
+         */
+        synchronized List<LocalDate[]> staleWindows(LocalDate from, LocalDate to, long now, long maxAgeMillis) {
+            LocalDate today = LocalDate.now();
+            List<LocalDate[]> windows = new ArrayList<>();
+            LocalDate day = from;
+            while (!day.isAfter(to)) {
+                LocalDate windowStart = windowStart(day);
+                LocalDate windowEnd = windowStart.plusMonths(WINDOW_MONTHS).minusDays(1);
+                for (; !day.isAfter(to) && !day.isAfter(windowEnd); day = day.plusDays(1)) {
+                    Day cached = days.get(day);
+                    if (cached == null || now - cached.fetchedAt >= maxAgeMillis) {
+                        LocalDate first = day.isBefore(today) ? day : today;
+                        windows.add(new LocalDate[]{first.isAfter(windowStart) ? first : windowStart, windowEnd});
+                        day = windowEnd.plusDays(1);
+                        break;
+                    }
+                }
+            }
+            return windows;
+        }
+
+        /**
+         * @return first day of the window of the day; windows are aligned on calendar months so that ranges starting
+         * on different days still share them
+         */
+        private static LocalDate windowStart(LocalDate day) {
+            long month = day.getYear() * 12L + day.getMonthValue() - 1;
+            long windowStart = month - Math.floorMod(month, WINDOW_MONTHS);
+            return LocalDate.of((int) (windowStart / 12), (int) (windowStart % 12) + 1, 1);
+        }
+
+        /**
+         * @return true if every day of the range is cached and either fresh or restored
+         */
+        synchronized boolean isServable(LocalDate from, LocalDate to, long now) {
+            for (LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+                Day cached = days.get(day);
+                if (cached == null || !cached.isServable(now)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return the days replaced, by date
+         */
+        synchronized Map<LocalDate, Day> store(LocalDate from, LocalDate to, String fetchedCurrency, List<JsonNode> nodes, long fetchedAt) {
+            if (fetchedCurrency != null && !fetchedCurrency.isEmpty()) {
+                currency = fetchedCurrency;
+            }
+
+            Map<LocalDate, List<Departure>> byDay = new HashMap<>();
+            for (JsonNode node : nodes) {
+                String startDate = node.path("start_date").asText(null);
+                if (startDate == null || startDate.isEmpty()) {
+                    continue;
+                }
+                if (Mapping.spacesRemaining(node) < 0) {
+                    // Not a number, the live availability check skips it too
+                    continue;
+                }
+                LocalDate date = LocalDate.parse(startDate);
+                byDay.computeIfAbsent(date, d -> new ArrayList<>()).add(new Departure(date, node));
+            }
+            Map<LocalDate, Day> replaced = new HashMap<>();
+            for (LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+                Day previous = days.put(day, new Day(fetchedAt, byDay.getOrDefault(day, Collections.emptyList()), false));
+                if (previous != null) {
+                    replaced.put(day, previous);
+                }
+            }
+            calendar = null;
+            return replaced;
+        }
+
+        /**
+         * @return per start time of the replaced days, in date and time order, the capacity and status that changed
+         */
+        synchronized List<Change> changesSince(Map<LocalDate, Day> replaced) {
+            List<Change> changes = new ArrayList<>();
+            for (Map.Entry<LocalDate, Day> entry : new TreeMap<>(replaced).entrySet()) {
+                Day current = days.get(entry.getKey());
+                if (current == null) {
+                    continue;
+                }
+                Map<String, int[]> before = slots(entry.getValue().departures);
+                Map<String, int[]> after = slots(current.departures);
+                SortedSet<String> startTimes = new TreeSet<>(before.keySet());
+                startTimes.addAll(after.keySet());
+                for (String startTime : startTimes) {
+                    // A start time gone or new counts as no capacity, closed
+                    int[] previous = before.getOrDefault(startTime, new int[]{0, 0});
+                    int[] now = after.getOrDefault(startTime, new int[]{0, 0});
+                    if (previous[0] != now[0] || previous[1] != now[1]) {
+                        changes.add(new Change(entry.getKey(), startTime, previous[0], previous[1] == 1, now[0], now[1] == 1));
+                    }
+                }
+            }
+            return changes;
+        }
+
+        /**
+         * @return per start time, the most spaces left on its departures and 1 if any is OPEN
+         */
+        private static Map<String, int[]> slots(List<Departure> departures) {
+            Map<String, int[]> slots = new HashMap<>();
+            for (Departure departure : departures) {
+                int[] slot = slots.computeIfAbsent(departure.startTime, startTime -> new int[]{0, 0});
+                slot[0] = Math.max(slot[0], departure.capacity);
+                if (departure.isOpen()) {
+                    slot[1] = 1;
+                }
+            }
+            return slots;
+        }
+
+        synchronized TourDepartures snapshot(LocalDate from, LocalDate to) {
+            // Days before it have nothing Bokun could sell
+            LocalDate first = calendar().firstDateWithCapacity(from, to, 1);
+            if (first == null) {
+                return new TourDepartures(currency, Collections.emptyList());
+            }
+            List<Departure> departures = new ArrayList<>();
+            for (Day day : days.subMap(first, true, to, true).values()) {
+                for (Departure departure : day.departures) {
+                    departures.add(new Departure(departure));
+                }
+            }
+            return new TourDepartures(currency, departures);
+        }
+
+        synchronized long minCapacity(LocalDate from, LocalDate to) {
+            return calendar().minOpenCapacity(from, to);
+        }
+
+        private AvailabilityCalendar calendar() {
+            if (calendar == null) {
+                TreeMap<LocalDate, List<Departure>> departuresByDay = new TreeMap<>();
+                days.forEach((date, day) -> departuresByDay.put(date, day.departures));
+                calendar = new AvailabilityCalendar(departuresByDay);
+            }
+            return calendar;
+        }
+
+        synchronized void adjust(LocalDate date, String startTime, Map<String, Integer> paxByRate, int sign) {
+            Day day = days.get(date);
+            if (day == null) {
+                return;
+            }
+            for (Departure departure : day.departures) {
+                if (!Objects.equals(departure.startTime, startTime)) {
+                    continue;
+                }
+                // Departures without a supplier note are mapped to the tour's default rate
+                Integer pax;
+                if (departure.rateId.isEmpty()) {
+                    pax = paxByRate.values().stream().mapToInt(Integer::intValue).sum();
+                } else {
+                    pax = paxByRate.get(departure.rateId);
+                }
+                if (pax != null) {
+                    departure.capacity = Math.max(0, departure.capacity + sign * pax);
+                    calendar = null;
+                }
+            }
+        }
+
+        synchronized void evict(LocalDate today, long now) {
+            days.headMap(today, false).clear();
+            days.values().removeIf(day -> !day.isServable(now));
+            calendar = null;
+        }
+
+        void writeSnapshot(DataOutputStream out) throws IOException {
+            String copiedCurrency;
+            Map<LocalDate, Day> copy = new TreeMap<>();
+            // Copied first, the file isn't written while holding the lock
+            synchronized (this) {
+                copiedCurrency = currency;
+                days.forEach((date, day) -> {
+                    List<Departure> departures = new ArrayList<>(day.departures.size());
+                    for (Departure departure : day.departures) {
+                        departures.add(new Departure(departure));
+                    }
+                    copy.put(date, new Day(day.fetchedAt, departures, day.restored));
+                });
+            }
+
+            CacheSnapshot.writeString(out, copiedCurrency);
+            out.writeInt(copy.size());
+            for (Map.Entry<LocalDate, Day> entry : copy.entrySet()) {
+                out.writeLong(entry.getKey().toEpochDay());
+                out.writeLong(entry.getValue().fetchedAt);
+                out.writeInt(entry.getValue().departures.size());
+                for (Departure departure : entry.getValue().departures) {
+                    out.writeInt(departure.capacity);
+                    CacheSnapshot.writeBytes(out, Mapping.MAPPER.writeValueAsBytes(departure.node));
+                }
+            }
+        }
+
+        /**
+         * Adds the days of the snapshot not cached yet, skipping past ones and those older than
+         * {@code oldestFetchedAt}.
+         *
+         * @return number of departures restored
+         */
+        int readSnapshot(ByteBuffer in, LocalDate today, long oldestFetchedAt) throws IOException {
+            String restoredCurrency = CacheSnapshot.readString(in);
+            Map<LocalDate, Day> restored = new HashMap<>();
+            int departureCount = 0;
+            int dayCount = in.getInt();
+            for (int i = 0; i < dayCount; i++) {
+                LocalDate date = LocalDate.ofEpochDay(in.getLong());
+                long fetchedAt = in.getLong();
+                int count = in.getInt();
+                boolean keep = !date.isBefore(today) && fetchedAt >= oldestFetchedAt;
+                List<Departure> departures = new ArrayList<>(keep ? count : 0);
+                for (int j = 0; j < count; j++) {
+                    int capacity = in.getInt();
+                    byte[] node = CacheSnapshot.readBytes(in);
+                    if (keep) {
+                        departures.add(new Departure(date, Departure.slim(Mapping.MAPPER.readTree(node)), capacity));
+                    }
+                }
+                if (keep) {
+                    restored.put(date, new Day(fetchedAt, departures, true));
+                    departureCount += count;
+                }
+            }
+
+            synchronized (this) {
+                if (currency == null) {
+                    currency = restoredCurrency;
+                }
+                restored.forEach(days::putIfAbsent);
+                calendar = null;
+            }
+            return departureCount;
+        }
+
+        synchronized int departureCount() {
+            return days.values().stream().mapToInt(day -> day.departures.size()).sum();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package io.bokun.inventory.plugin.tourcms.service;
+
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Read-only capacity index of one tour, built from its cached departures.
+ * <p>
+ * Capacities are laid out in a primitive grid of epoch day by start-time slot, where a slot holds the most spaces
+ * left on any departure at that time, and folded into per-day maxima indexed by sparse tables. The range minimum is
+ * then answered in O(1) and the first day with enough capacity in O(log n), without touching a single
+ * departure. Days not covered, and days without a departure, count as {@link #NONE}. Built once per change of the
+ * tour's departures, then shared by every reader.
+ */
+final class AvailabilityCalendar {
+
+    static final int NONE = -1;
+
+    private final long firstEpochDay;
+    private final int dayCount;
+    // Per-day maxima over OPEN departures only, days without one excluded
+    private final int[][] openMin;
+    // Per-day maxima over all departures
+    private final int[][] anyMax;
+
+    /**
+     * @param departuresByDay departures of each covered day, in day order
+     */
+    AvailabilityCalendar(NavigableMap<LocalDate, ? extends Collection<AvailabilityCache.Departure>> departuresByDay) {
+        if (departuresByDay.isEmpty()) {
+            firstEpochDay = 0;
+            dayCount = 0;
+        } else {
+            firstEpochDay = departuresByDay.firstKey().toEpochDay();
+            dayCount = (int) (departuresByDay.lastKey().toEpochDay() - firstEpochDay + 1);
+        }
+
+        SortedSet<String> startTimes = new TreeSet<>();
+        departuresByDay.values().forEach(departures -> departures.forEach(departure -> startTimes.add(departure.getStartTime())));
+        Map<String, Integer> slots = new HashMap<>(startTimes.size() * 2);
+        for (String startTime : startTimes) {
+            slots.put(startTime, slots.size());
+        }
+
+        // dayCount x slotCount, by day then slot
+        int slotCount = slots.size();
+        int[] capacities = new int[dayCount * slotCount];
+        Arrays.fill(capacities, NONE);
+        int[] openCapacities = new int[dayCount * slotCount];
+        Arrays.fill(openCapacities, NONE);
+
+        departuresByDay.forEach((date, departures) -> {
+            int day = (int) (date.toEpochDay() - firstEpochDay);
+            for (AvailabilityCache.Departure departure : departures) {
+                int cell = day * slotCount + slots.get(departure.getStartTime());
+                capacities[cell] = Math.max(capacities[cell], departure.getCapacity());
+                if (departure.isOpen()) {
+                    openCapacities[cell] = Math.max(openCapacities[cell], departure.getCapacity());
+                }
+            }
+        });
+
+        int[] openMax = new int[dayCount];
+        int[] dayMax = new int[dayCount];
+        for (int day = 0; day < dayCount; day++) {
+            int open = rowMax(openCapacities, day, slotCount);
+            // Days without an open departure don't count towards the minimum
+            openMax[day] = open == NONE ? Integer.MAX_VALUE : open;
+            dayMax[day] = rowMax(capacities, day, slotCount);
+        }
+        openMin = sparseTable(openMax, true);
+        anyMax = sparseTable(dayMax, false);
+    }
+
+    /**
+     * @return the lowest of the per-day maxima over OPEN departures between {@code from} and {@code to}; 0 if no
+     * day of the range has an open departure
+     */
+    long minOpenCapacity(LocalDate from, LocalDate to) {
+        int[] range = range(from, to);
+        if (range == null) {
+            return 0;
+        }
+        int min = query(openMin, range[0], range[1], true);
+        return min == Integer.MAX_VALUE ? 0 : min;
+    }
+
+    /**
+     * @return the first day between {@code from} and {@code to} with a departure having at least {@code capacity}
+     * spaces left, or null
+     */
+    LocalDate firstDateWithCapacity(LocalDate from, LocalDate to, int capacity) {
+        int[] range = range(from, to);
+        if (range == null || query(anyMax, range[0], range[1], false) < capacity) {
+            return null;
+        }
+        // Smallest end whose prefix maximum reaches the capacity
+        int low = range[0];
+        int high = range[1];
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (query(anyMax, range[0], middle, false) >= capacity) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return LocalDate.ofEpochDay(firstEpochDay + low);
+    }
+
+    /**
+     * @return first and last day index of the range clipped to the calendar, or null if they don't overlap
+     */
+    private int[] range(LocalDate from, LocalDate to) {
+        long first = Math.max(from.toEpochDay() - firstEpochDay, 0);
+        long last = Math.min(to.toEpochDay() - firstEpochDay, dayCount - 1L);
+        return first > last ? null : new int[]{(int) first, (int) last};
+    }
+
+    private static int rowMax(int[] grid, int day, int slotCount) {
+        int max = NONE;
+        for (int cell = day * slotCount; cell < (day + 1) * slotCount; cell++) {
+            max = Math.max(max, grid[cell]);
+        }
+        return max;
+    }
+
+    private static int[][] sparseTable(int[] values, boolean min) {
+        int levels = 1;
+        while ((1 << levels) <= values.length) {
+            levels++;
+        }
+        int[][] table = new int[levels][];
+        table[0] = values;
+        for (int level = 1; level < levels; level++) {
+            int width = 1 << level;
+            int[] previous = table[level - 1];
+            int[] current = new int[values.length - width + 1];
+            for (int i = 0; i < current.length; i++) {
+                int left = previous[i];
+                int right = previous[i + (width >> 1)];
+                current[i] = min ? Math.min(left, right) : Math.max(left, right);
+            }
+            table[level] = current;
+        }
+        return table;
+    }
+
+    private static int query(int[][] table, int first, int last, boolean min) {
+        int level = 31 - Integer.numberOfLeadingZeros(last - first + 1);
+        int left = table[level][first];
+        int right = table[level][last - (1 << level) + 1];
+        return min ? Math.min(left, right) : Math.max(left, right);
+    }
+}
@@ -0,0 +1,202 @@
+package io.bokun.inventory.plugin.tourcms.service;
+
+import com.google.gson.Gson;
+import com.google.inject.Inject;
+import io.bokun.inventory.plugin.tourcms.api.WebhookClient;
+import io.bokun.inventory.plugin.tourcms.util.AppLogger;
+import okhttp3.HttpUrl;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes the departures whose capacity or status changed to {@code TOURCMS_CHANGE_WEBHOOK_URL}, so whoever listens
+ * learns about changes without polling us for every date.
+ * <p>
+ * Every fetch of the {@link AvailabilityCache}, whether for Bokun, the {@link AvailabilityWarmer} or a revalidation,
+ * is compared with the days it replaces, per tour, date and start time. Changes are coalesced until the next flush,
+ * every {@code TOURCMS_CHANGE_FEED_INTERVAL_SECONDS}: a start time changed twice is sent once with its first and last
+ * values, and one changed back is not sent at all. A batch that can't be delivered is merged back and sent again
+ * with the next. At most {@code TOURCMS_CHANGE_FEED_MAX_PENDING} changes are kept, the oldest dropped first.
+ * Disabled when no webhook URL is set, or when it isn't a valid http(s) URL.
+ */
+public class AvailabilityChangeFeed {
+
+    private static final String TAG = AvailabilityChangeFeed.class.getSimpleName();
+
+    private static final String WEBHOOK_URL = System.getenv("TOURCMS_CHANGE_WEBHOOK_URL");
+
+    private static final long INTERVAL_SECONDS = System.getenv("TOURCMS_CHANGE_FEED_INTERVAL_SECONDS") != null
+            ? Long.parseLong(System.getenv("TOURCMS_CHANGE_FEED_INTERVAL_SECONDS"))
+            : 10L;
+
+    private static final int MAX_PENDING = System.getenv("TOURCMS_CHANGE_FEED_MAX_PENDING") != null
+            ? Integer.parseInt(System.getenv("TOURCMS_CHANGE_FEED_MAX_PENDING"))
+            : 10000;
+
+    private final boolean enabled;
+
+    // By marketplace:channel:tour:date:startTime, oldest first
+    private final LinkedHashMap<String, DepartureChange> pending = new LinkedHashMap<>();
+    private final AtomicBoolean sending = new AtomicBoolean();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong detected = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "availability-change-feed");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Inject
+    public AvailabilityChangeFeed(AvailabilityCache availabilityCache) {
+        boolean configured = WEBHOOK_URL != null && !WEBHOOK_URL.isEmpty();
+        if (configured && HttpUrl.parse(WEBHOOK_URL) == null) {
+            AppLogger.error(TAG, String.format("TOURCMS_CHANGE_WEBHOOK_URL is not a valid http(s) URL, availability changes won't be sent: %s", WEBHOOK_URL));
+        }
+        this.enabled = configured && HttpUrl.parse(WEBHOOK_URL) != null;
+        if (enabled) {
+            availabilityCache.addChangeListener(this::record);
+            scheduler.scheduleWithFixedDelay(this::flush, INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", enabled);
+        synchronized (this) {
+            metrics.put("pending", pending.size());
+        }
+        metrics.put("detected", detected.get());
+        metrics.put("sent", sent.get());
+        metrics.put("dropped", dropped.get());
+        metrics.put("failures", failures.get());
+        return metrics;
+    }
+
+    private synchronized void record(TourKey key, List<AvailabilityCache.Change> changes) {
+        detected.addAndGet(changes.size());
+        for (AvailabilityCache.Change change : changes) {
+            merge(new DepartureChange(key, change));
+        }
+        trim();
+    }
+
+    /**
+     * Adds a change on top of the pending one of its start time, if any.
+     */
+    private void merge(DepartureChange change) {
+        String changeKey = change.key();
+        DepartureChange earlier = pending.remove(changeKey);
+        if (earlier != null) {
+            change.previousCapacity = earlier.previousCapacity;
+            change.previouslyOpen = earlier.previouslyOpen;
+        }
+        if (change.isChange()) {
+            pending.put(changeKey, change);
+        }
+    }
+
+    private void trim() {
+        Iterator<DepartureChange> oldest = pending.values().iterator();
+        while (pending.size() > MAX_PENDING && oldest.hasNext()) {
+            oldest.next();
+            oldest.remove();
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void flush() {
+        if (!sending.compareAndSet(false, true)) {
+            // The previous batch is still being delivered
+            return;
+        }
+        List<DepartureChange> batch;
+        synchronized (this) {
+            batch = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        if (batch.isEmpty()) {
+            sending.set(false);
+            return;
+        }
+
+        try {
+            Map<String, Object> body = new LinkedHashMap<>();
+            body.put("sequence", sequence.incrementAndGet());
+            body.put("sentAt", Instant.now().toString());
+            body.put("changes", batch);
+            WebhookClient.postJson(WEBHOOK_URL, new Gson().toJson(body)).whenComplete((ignored, error) -> {
+                if (error != null) {
+                    failures.incrementAndGet();
+                    AppLogger.warn(TAG, String.format("Couldn't deliver %d availability changes, retrying with the next batch: %s", batch.size(), error.getMessage()));
+                    requeue(batch);
+                } else {
+                    sent.addAndGet(batch.size());
+                    AppLogger.info(TAG, String.format("Delivered %d availability changes", batch.size()));
+                }
+                sending.set(false);
+            });
+        } catch (RuntimeException e) {
+            // Thrown before the call was made, the batch would be lost otherwise
+            failures.incrementAndGet();
+            AppLogger.error(TAG, String.format("Couldn't flush %d availability changes, retrying with the next batch", batch.size()), e);
+            requeue(batch);
+            sending.set(false);
+        }
+    }
+
+    /**
+     * Puts back a batch that couldn't be delivered, under the changes recorded since.
+     */
+    private synchronized void requeue(List<DepartureChange> batch) {
+        LinkedHashMap<String, DepartureChange> since = new LinkedHashMap<>(pending);
+        pending.clear();
+        batch.forEach(change -> pending.put(change.key(), change));
+        since.values().forEach(this::merge);
+        trim();
+    }
+
+    /**
+     * One start time of a tour, as sent to the webhook.
+     */
+    private static final class DepartureChange {
+        private final String marketplaceId;
+        private final String channelId;
+        private final String productId;
+        private final String date;
+        private final String time;
+        private int previousCapacity;
+        private boolean previouslyOpen;
+        private final int capacity;
+        private final boolean open;
+
+        DepartureChange(TourKey key, AvailabilityCache.Change change) {
+            this.marketplaceId = key.marketplaceId;
+            this.channelId = key.channelId;
+            this.productId = key.tourId;
+            this.date = change.date.toString();
+            this.time = change.startTime;
+            this.previousCapacity = change.previousCapacity;
+            this.previouslyOpen = change.previouslyOpen;
+            this.capacity = change.capacity;
+            this.open = change.open;
+        }
+
+        String key() {
+            return marketplaceId + ":" + channelId + ":" + productId + ":" + date + ":" + time;
+        }
+
+        boolean isChange() {
+            return previousCapacity != capacity || previouslyOpen != open;
+        }
+    }
+}
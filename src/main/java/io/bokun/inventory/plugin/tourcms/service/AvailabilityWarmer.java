@@ -0,0 +1,203 @@
+package io.bokun.inventory.plugin.tourcms.service;
+
+import com.google.inject.Inject;
+import io.bokun.inventory.plugin.tourcms.Configuration;
+import io.bokun.inventory.plugin.tourcms.api.TourCmsClient;
+import io.bokun.inventory.plugin.tourcms.api.TourCmsUnavailableException;
+import io.bokun.inventory.plugin.tourcms.util.AppLogger;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps the next {@code TOURCMS_WARM_DAYS} days of hot tours in the {@link AvailabilityCache}, so Bokun's
+ * availability calls are answered from memory.
+ * <p>
+ * Hot tours are the {@code TOURCMS_FILTER_IDS} of every channel Bokun calls us for, plus the tours Bokun asked
+ * availability for in the last {@code TOURCMS_WARM_RECENT_MINUTES}. The first {@code TOURCMS_WARM_NEAR_DAYS} days
+ * are refreshed more often than the rest, both ahead of the cache TTL. A refresh is one departures query, for the
+ * first window of the range due (see {@link AvailabilityCache#refresh}), so at most {@code TOURCMS_WARM_CONCURRENCY}
+ * queries, each with up to {@code TOURCMS_PAGE_CONCURRENCY} pages in flight, run at a time. One only starts while
+ * the channel's rate limiter has more than {@code TOURCMS_WARM_RESERVED_TOKENS} tokens left; the pages of a query
+ * started then still draw on the limiter, so the reserve is kept ahead of a refresh, not throughout it.
+ */
+public class AvailabilityWarmer {
+
+    private static final String TAG = AvailabilityWarmer.class.getSimpleName();
+
+    private static final boolean ENABLED = !"false".equalsIgnoreCase(System.getenv("TOURCMS_WARM_ENABLED"));
+
+    private static final int DAYS = System.getenv("TOURCMS_WARM_DAYS") != null
+            ? Integer.parseInt(System.getenv("TOURCMS_WARM_DAYS"))
+            : 60;
+
+    private static final int NEAR_DAYS = System.getenv("TOURCMS_WARM_NEAR_DAYS") != null
+            ? Integer.parseInt(System.getenv("TOURCMS_WARM_NEAR_DAYS"))
+            : 7;
+
+    private static final long NEAR_REFRESH_MILLIS = (System.getenv("TOURCMS_WARM_NEAR_REFRESH_SECONDS") != null
+            ? Long.parseLong(System.getenv("TOURCMS_WARM_NEAR_REFRESH_SECONDS"))
+            : 60L) * 1000L;
+
+    private static final long FAR_REFRESH_MILLIS = (System.getenv("TOURCMS_WARM_FAR_REFRESH_SECONDS") != null
+            ? Long.parseLong(System.getenv("TOURCMS_WARM_FAR_REFRESH_SECONDS"))
+            : 240L) * 1000L;
+
+    private static final long INTERVAL_MILLIS = (System.getenv("TOURCMS_WARM_INTERVAL_SECONDS") != null
+            ? Long.parseLong(System.getenv("TOURCMS_WARM_INTERVAL_SECONDS"))
+            : 15L) * 1000L;
+
+    private static final long RECENT_MILLIS = (System.getenv("TOURCMS_WARM_RECENT_MINUTES") != null
+            ? Long.parseLong(System.getenv("TOURCMS_WARM_RECENT_MINUTES"))
+            : 60L) * 60_000L;
+
+    private static final int MAX_TOURS = System.getenv("TOURCMS_WARM_MAX_TOURS") != null
+            ? Integer.parseInt(System.getenv("TOURCMS_WARM_MAX_TOURS"))
+            : 200;
+
+    private static final int CONCURRENCY = System.getenv("TOURCMS_WARM_CONCURRENCY") != null
+            ? Integer.parseInt(System.getenv("TOURCMS_WARM_CONCURRENCY"))
+            : 2;
+
+    private static final double RESERVED_TOKENS = System.getenv("TOURCMS_WARM_RESERVED_TOKENS") != null
+            ? Double.parseDouble(System.getenv("TOURCMS_WARM_RESERVED_TOKENS"))
+            : 5.0;
+
+    private final AvailabilityCache availabilityCache;
+    private final ConcurrentMap<TourKey, HotTour> hotTours = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "availability-warmer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Inject
+    public AvailabilityWarmer(AvailabilityCache availabilityCache) {
+        this.availabilityCache = availabilityCache;
+        if (ENABLED) {
+            scheduler.scheduleWithFixedDelay(this::tick, INTERVAL_MILLIS, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Marks the filter IDs of the channel as hot. Called on every availability request, so they stay hot while
+     * Bokun keeps calling for the channel.
+     */
+    public void track(Configuration configuration, TourCmsClient client) {
+        if (configuration.filterIds == null || configuration.filterIds.isEmpty()) {
+            return;
+        }
+        for (String tourId : configuration.filterIds.split(",")) {
+            if (!tourId.trim().isEmpty()) {
+                touch(client, tourId.trim());
+            }
+        }
+    }
+
+    /**
+     * Marks a tour Bokun just asked availability for as hot.
+     */
+    public void touch(TourCmsClient client, String tourId) {
+        hotTours.compute(TourKey.of(client, tourId), (key, hot) -> {
+            if (hot == null) {
+                return new HotTour(client, tourId);
+            }
+            // The channel's key may have been rotated since
+            hot.client = client;
+            hot.lastRequestedAt = System.currentTimeMillis();
+            return hot;
+        });
+    }
+
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", ENABLED);
+        metrics.put("tours", hotTours.size());
+        metrics.put("inFlight", inFlight.get());
+        metrics.put("refreshes", refreshes.get());
+        metrics.put("failures", failures.get());
+        return metrics;
+    }
+
+    private void tick() {
+        try {
+            long now = System.currentTimeMillis();
+            hotTours.values().removeIf(hot -> now - hot.lastRequestedAt > RECENT_MILLIS);
+
+            List<HotTour> tours = hotTours.values().stream()
+                    .sorted(Comparator.comparingLong((HotTour hot) -> hot.lastRequestedAt).reversed())
+                    .limit(MAX_TOURS)
+                    .collect(Collectors.toList());
+
+            LocalDate today = LocalDate.now();
+            LocalDate nearEnd = today.plusDays(Math.min(NEAR_DAYS, DAYS) - 1);
+            LocalDate farEnd = today.plusDays(DAYS - 1);
+
+            // All near days first, they are what Bokun asks for most
+            for (HotTour hot : tours) {
+                if (!refresh(hot, today, nearEnd, NEAR_REFRESH_MILLIS)) {
+                    return;
+                }
+            }
+            if (farEnd.isAfter(nearEnd)) {
+                for (HotTour hot : tours) {
+                    if (!refresh(hot, nearEnd.plusDays(1), farEnd, FAR_REFRESH_MILLIS)) {
+                        return;
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            AppLogger.error(TAG, "Couldn't warm availability", e);
+        }
+    }
+
+    /**
+     * @return false once no more refreshes may start in this tick
+     */
+    private boolean refresh(HotTour hot, LocalDate from, LocalDate to, long maxAgeMillis) {
+        if (inFlight.get() >= CONCURRENCY) {
+            return false;
+        }
+        TourCmsClient client = hot.client;
+        if (!client.hasSpareCapacity(RESERVED_TOKENS)) {
+            // Bokun traffic on this channel comes first, try again next tick
+            return true;
+        }
+
+        CompletableFuture<Void> refresh = availabilityCache.refresh(client, hot.tourId, from, to, maxAgeMillis);
+        if (refresh.isDone()) {
+            return true;
+        }
+        inFlight.incrementAndGet();
+        refreshes.incrementAndGet();
+        refresh.whenComplete((ignored, error) -> {
+            inFlight.decrementAndGet();
+            if (error != null) {
+                failures.incrementAndGet();
+                if (TourCmsUnavailableException.from(error) == null) {
+                    AppLogger.warn(TAG, String.format("Couldn't warm tour %s from %s to %s: %s", hot.tourId, from, to, error.getMessage()));
+                }
+            }
+        });
+        return true;
+    }
+
+    private static final class HotTour {
+        private volatile TourCmsClient client;
+        private final String tourId;
+        private volatile long lastRequestedAt = System.currentTimeMillis();
+
+        HotTour(TourCmsClient client, String tourId) {
+            this.client = client;
+            this.tourId = tourId;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package io.bokun.inventory.plugin.tourcms.service;
+
+import com.google.inject.Inject;
+import io.bokun.inventory.plugin.tourcms.util.AppLogger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves the {@link AvailabilityCache} (with its booking ledger) and the {@link ProductDescriptionCache} to
+ * {@code TOURCMS_SNAPSHOT_PATH} every {@code TOURCMS_SNAPSHOT_INTERVAL_SECONDS} and on shutdown, and reads them back
+ * on startup so a restarted plugin answers from memory at once instead of going back to TourCMS for everything.
+ * <p>
+ * The file is a versioned binary format written next to its final name and moved over it, so a crash mid-write
+ * leaves the previous snapshot in place. It is memory-mapped when read. Entries older than
+ * {@code TOURCMS_SNAPSHOT_MAX_AGE_MINUTES} are left out; the others are served while fetched again in the background.
+ */
+public class CacheSnapshot {
+
+    private static final String TAG = CacheSnapshot.class.getSimpleName();
+
+    private static final int MAGIC = 0x54434D53;
+    private static final int FORMAT_VERSION = 1;
+
+    private static final Path PATH = Paths.get(System.getenv("TOURCMS_SNAPSHOT_PATH") != null
+            ? System.getenv("TOURCMS_SNAPSHOT_PATH")
+            : "cache-snapshot.bin");
+
+    private static final long INTERVAL_SECONDS = System.getenv("TOURCMS_SNAPSHOT_INTERVAL_SECONDS") != null
+            ? Long.parseLong(System.getenv("TOURCMS_SNAPSHOT_INTERVAL_SECONDS"))
+            : 300L;
+
+    static final long MAX_AGE_MILLIS = (System.getenv("TOURCMS_SNAPSHOT_MAX_AGE_MINUTES") != null
+            ? Long.parseLong(System.getenv("TOURCMS_SNAPSHOT_MAX_AGE_MINUTES"))
+            : 120L) * 60_000L;
+
+    private final AvailabilityCache availabilityCache;
+    private final ProductDescriptionCache productDescriptionCache;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cache-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Inject
+    public CacheSnapshot(AvailabilityCache availabilityCache, ProductDescriptionCache productDescriptionCache) {
+        this.availabilityCache = availabilityCache;
+        this.productDescriptionCache = productDescriptionCache;
+    }
+
+    /**
+     * Reads the last snapshot, if any, then starts saving new ones. Call once, before the server starts.
+     */
+    public void restore() {
+        if (Files.exists(PATH)) {
+            long startedAt = System.currentTimeMillis();
+            try (FileChannel channel = FileChannel.open(PATH, StandardOpenOption.READ)) {
+                MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION) {
+                    AppLogger.warn(TAG, String.format("Ignoring snapshot %s, unknown format", PATH));
+                } else {
+                    long writtenAt = in.getLong();
+                    long oldestFetchedAt = startedAt - MAX_AGE_MILLIS;
+                    int departures = availabilityCache.readSnapshot(in, oldestFetchedAt);
+                    int products = productDescriptionCache.readSnapshot(in, oldestFetchedAt);
+                    AppLogger.info(TAG, String.format("Restored %d departures and %d products from snapshot %s written %d s ago, in %d ms",
+                            departures, products, PATH, (startedAt - writtenAt) / 1000, System.currentTimeMillis() - startedAt));
+                }
+            } catch (IOException | RuntimeException e) {
+                // Whatever was restored before the error stays, the rest is fetched on demand
+                AppLogger.error(TAG, String.format("Couldn't restore snapshot %s", PATH), e);
+            }
+        }
+
+        scheduler.scheduleWithFixedDelay(this::save, INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::save, "cache-snapshot-shutdown"));
+    }
+
+    synchronized void save() {
+        long startedAt = System.currentTimeMillis();
+        Path temp = PATH.resolveSibling(PATH.getFileName() + ".tmp");
+        try {
+            try (OutputStream file = Files.newOutputStream(temp);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(startedAt);
+                availabilityCache.writeSnapshot(out);
+                productDescriptionCache.writeSnapshot(out);
+            }
+            Files.move(temp, PATH, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            AppLogger.info(TAG, String.format("Saved snapshot %s (%d bytes) in %d ms",
+                    PATH, Files.size(PATH), System.currentTimeMillis() - startedAt));
+        } catch (IOException | RuntimeException e) {
+            AppLogger.error(TAG, String.format("Couldn't save snapshot %s", PATH), e);
+        }
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value != null ? value.getBytes(StandardCharsets.UTF_8) : null);
+    }
+
+    static String readString(ByteBuffer in) {
+        byte[] bytes = readBytes(in);
+        return bytes != null ? new String(bytes, StandardCharsets.UTF_8) : null;
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static byte[] readBytes(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+
+    static void writeTourKey(DataOutputStream out, TourKey key) throws IOException {
+        writeString(out, key.marketplaceId);
+        writeString(out, key.channelId);
+        writeString(out, key.tourId);
+    }
+
+    static TourKey readTourKey(ByteBuffer in) {
+        return new TourKey(readString(in), readString(in), readString(in));
+    }
+}
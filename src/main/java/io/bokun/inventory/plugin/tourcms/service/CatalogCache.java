@@ -0,0 +1,330 @@
+package io.bokun.inventory.plugin.tourcms.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.inject.Inject;
+import io.bokun.inventory.plugin.api.rest.BasicProductInfo;
+import io.bokun.inventory.plugin.api.rest.PricingCategory;
+import io.bokun.inventory.plugin.tourcms.api.TourCmsClient;
+import io.bokun.inventory.plugin.tourcms.api.TourCmsPager;
+import io.bokun.inventory.plugin.tourcms.api.TourCmsUnavailableException;
+import io.bokun.inventory.plugin.tourcms.model.ProductRateMapping;
+import io.bokun.inventory.plugin.tourcms.util.AppLogger;
+import io.bokun.inventory.plugin.tourcms.util.Mapping;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The product catalog of each (marketplace, channel, filter IDs) Bokun searches, as an immutable snapshot.
+ * <p>
+ * Every page of {@code /c/tours/search.xml} is fetched, concurrently, and mapped into a new snapshot that
+ * replaces the previous one in a single swap, so searches never see a catalog half refreshed. Snapshots are
+ * rebuilt in the background every {@code TOURCMS_CATALOG_REFRESH_MINUTES}; only the very first search of a
+ * catalog waits for TourCMS. A failed refresh keeps the previous snapshot. Catalogs nobody searched for in
+ * {@code TOURCMS_CATALOG_IDLE_HOURS} are dropped.
+ * <p>
+ * Pricing categories come from the {@link ProductRateCache}. Tours it has no departures of yet are fetched with at
+ * most {@code TOURCMS_CATALOG_PRICING_CONCURRENCY} requests in flight; those still unknown
+ * {@code TOURCMS_CATALOG_PRICING_DEADLINE_MS} after the catalog arrived get their {@code from_price} instead.
+ */
+public class CatalogCache {
+
+    private static final String TAG = CatalogCache.class.getSimpleName();
+
+    private static final int PER_PAGE = 200;
+
+    private static final long REFRESH_MILLIS = (System.getenv("TOURCMS_CATALOG_REFRESH_MINUTES") != null
+            ? Long.parseLong(System.getenv("TOURCMS_CATALOG_REFRESH_MINUTES"))
+            : 15L) * 60_000L;
+
+    private static final long IDLE_MILLIS = (System.getenv("TOURCMS_CATALOG_IDLE_HOURS") != null
+            ? Long.parseLong(System.getenv("TOURCMS_CATALOG_IDLE_HOURS"))
+            : 24L) * 3_600_000L;
+
+    private static final int PRICING_CONCURRENCY = System.getenv("TOURCMS_CATALOG_PRICING_CONCURRENCY") != null
+            ? Integer.parseInt(System.getenv("TOURCMS_CATALOG_PRICING_CONCURRENCY"))
+            : 8;
+
+    private static final long PRICING_DEADLINE_MILLIS = System.getenv("TOURCMS_CATALOG_PRICING_DEADLINE_MS") != null
+            ? Long.parseLong(System.getenv("TOURCMS_CATALOG_PRICING_DEADLINE_MS"))
+            : 10000L;
+
+    private final ProductRateCache productRateCache;
+
+    private final ConcurrentMap<String, Catalog> catalogs = new ConcurrentHashMap<>();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "catalog-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Inject
+    public CatalogCache(ProductRateCache productRateCache) {
+        this.productRateCache = productRateCache;
+        scheduler.scheduleWithFixedDelay(this::tick, 60_000L, 60_000L, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param filterIds comma separated tour IDs the catalog is restricted to, or null for the whole channel
+     * @return the current snapshot of the catalog; fetched from TourCMS only if there is none yet
+     */
+    public CompletableFuture<List<BasicProductInfo>> get(TourCmsClient client, String filterIds) {
+        String normalizedFilterIds = filterIds != null && !filterIds.trim().isEmpty() ? filterIds.trim() : null;
+        Catalog catalog = catalogs.computeIfAbsent(
+                client.marketplaceId + ":" + client.channelId + ":" + normalizedFilterIds,
+                key -> new Catalog(client, normalizedFilterIds));
+        // The channel's key may have been rotated since, background refreshes sign with the latest one
+        catalog.client = client;
+        catalog.lastSearchedAt = System.currentTimeMillis();
+
+        Snapshot snapshot = catalog.snapshot;
+        if (snapshot != null) {
+            return CompletableFuture.completedFuture(snapshot.products);
+        }
+        return refresh(catalog).thenApply(refreshed -> refreshed.products);
+    }
+
+    public void invalidateAll() {
+        catalogs.clear();
+    }
+
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("catalogs", catalogs.size());
+        metrics.put("products", catalogs.values().stream()
+                .mapToInt(catalog -> catalog.snapshot != null ? catalog.snapshot.products.size() : 0)
+                .sum());
+        metrics.put("refreshes", refreshes.get());
+        metrics.put("failures", failures.get());
+        return metrics;
+    }
+
+    private void tick() {
+        try {
+            long now = System.currentTimeMillis();
+            catalogs.values().removeIf(catalog -> now - catalog.lastSearchedAt > IDLE_MILLIS);
+            for (Catalog catalog : catalogs.values()) {
+                Snapshot snapshot = catalog.snapshot;
+                if (snapshot != null && now - snapshot.fetchedAt >= REFRESH_MILLIS) {
+                    refresh(catalog);
+                }
+            }
+        } catch (RuntimeException e) {
+            AppLogger.error(TAG, "Couldn't refresh catalogs", e);
+        }
+    }
+
+    /**
+     * @return the refresh of the catalog in flight, started if there is none
+     */
+    private CompletableFuture<Snapshot> refresh(Catalog catalog) {
+        synchronized (catalog) {
+            if (catalog.refreshing != null) {
+                return catalog.refreshing;
+            }
+            refreshes.incrementAndGet();
+            long startedAt = System.currentTimeMillis();
+            TourCmsClient client = catalog.client;
+            CompletableFuture<Snapshot> refreshing = fetch(client, catalog.filterIds)
+                    .thenCompose(nodes -> price(client, nodes))
+                    .thenApply(products -> new Snapshot(Collections.unmodifiableList(products), startedAt));
+            catalog.refreshing = refreshing;
+            refreshing.whenComplete((snapshot, error) -> {
+                synchronized (catalog) {
+                    catalog.refreshing = null;
+                    if (error != null) {
+                        failures.incrementAndGet();
+                        if (TourCmsUnavailableException.from(error) == null) {
+                            AppLogger.warn(TAG, String.format("Couldn't refresh catalog %s:%s (%s), keeping the previous one: %s",
+                                    catalog.client.marketplaceId, catalog.client.channelId, catalog.filterIds, error.getMessage()));
+                        }
+                        return;
+                    }
+                    catalog.snapshot = snapshot;
+                }
+                AppLogger.info(TAG, String.format("Refreshed catalog %s:%s (%s): %d products in %d ms",
+                        catalog.client.marketplaceId, catalog.client.channelId, catalog.filterIds,
+                        snapshot.products.size(), System.currentTimeMillis() - startedAt));
+            });
+            return refreshing;
+        }
+    }
+
+    private static CompletableFuture<List<JsonNode>> fetch(TourCmsClient client, String filterIds) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("per_page", PER_PAGE);
+        if (filterIds != null) {
+            params.put("tour_id", filterIds);
+        }
+
+        List<JsonNode> productNodes = new ArrayList<>();
+        return client.getToursAsync(params)
+                .thenCompose(dataNode -> {
+                    addTourNodes(dataNode, productNodes);
+                    int totalPages = (int) Math.ceil((double) dataNode.path("total_tour_count").asInt() / PER_PAGE);
+                    return TourCmsPager.fetchPages(2, totalPages, pageNumber -> {
+                        Map<String, Object> pageParams = new HashMap<>(params);
+                        pageParams.put("page", pageNumber);
+                        return client.getToursAsync(pageParams);
+                    }, pageNode -> addTourNodes(pageNode, productNodes));
+                })
+                // The pager never touches productNodes once it is done
+                .thenApply(ignored -> productNodes);
+    }
+
+    /**
+     * Maps the tours with their pricing categories, fetching departures only for tours not in the rate cache.
+     */
+    private CompletableFuture<List<BasicProductInfo>> price(TourCmsClient client, List<JsonNode> productNodes) {
+        Pricing pricing = new Pricing(client, productNodes);
+        for (int i = 0; i < productNodes.size(); i++) {
+            ProductRateMapping mapping = productRateCache.getIfPresent(client, productNodes.get(i).path("tour_id").asText());
+            if (mapping != null) {
+                pricing.products.get(i).setPricingCategories(mapping.getPriceCategories());
+            } else {
+                pricing.missing.add(i);
+            }
+        }
+        if (pricing.missing.isEmpty()) {
+            pricing.result.complete(null);
+        } else {
+            ScheduledFuture<?> deadline = scheduler.schedule(pricing::close, PRICING_DEADLINE_MILLIS, TimeUnit.MILLISECONDS);
+            pricing.result.whenComplete((ignored, error) -> deadline.cancel(false));
+            for (int lane = 0; lane < Math.min(PRICING_CONCURRENCY, pricing.missing.size()); lane++) {
+                priceNext(pricing);
+            }
+        }
+        return pricing.result.thenApply(ignored -> pricing.products);
+    }
+
+    private void priceNext(Pricing pricing) {
+        int next = pricing.next.getAndIncrement();
+        if (next >= pricing.missing.size()) {
+            if (pricing.done.incrementAndGet() == Math.min(PRICING_CONCURRENCY, pricing.missing.size())) {
+                pricing.close();
+            }
+            return;
+        }
+        if (pricing.result.isDone()) {
+            return;
+        }
+
+        int index = pricing.missing.get(next);
+        JsonNode productNode = pricing.productNodes.get(index);
+        String tourId = productNode.path("tour_id").asText();
+        Map<String, Object> departuresParams = new HashMap<>();
+        departuresParams.put("id", tourId);
+        departuresParams.put("per_page", 30);
+
+        CompletableFuture<JsonNode> departures;
+        try {
+            departures = pricing.client.getTourDeparturesAsync(departuresParams);
+        } catch (RuntimeException e) {
+            departures = new CompletableFuture<>();
+            departures.completeExceptionally(e);
+        }
+        // Not on the completing thread: failures may complete right away, which would recurse through every tour
+        departures.whenCompleteAsync((departuresNode, error) -> {
+            if (error != null) {
+                AppLogger.warn(TAG, String.format("Failed to get departures of product %s, using its from price: %s", tourId, error.getMessage()));
+            } else {
+                JsonNode departure = departuresNode.path("tour").path("dates_and_prices").path("departure");
+                ProductRateMapping mapping = productRateCache.observe(pricing.client, tourId,
+                        departure.isArray() ? departure : Collections.singletonList(departure));
+                pricing.set(index, mapping.getPriceCategories());
+            }
+            priceNext(pricing);
+        }, scheduler);
+    }
+
+    private static void addTourNodes(JsonNode toursNode, List<JsonNode> productNodes) {
+        JsonNode tours = toursNode.path("tour");
+        if (tours.isArray()) {
+            tours.forEach(productNodes::add);
+        } else if (tours.isObject()) {
+            productNodes.add(tours);
+        }
+    }
+
+    /**
+     * Pricing of one catalog refresh. Products are only written under its lock until it is closed.
+     */
+    private static final class Pricing {
+        private final TourCmsClient client;
+        private final List<JsonNode> productNodes;
+        private final List<BasicProductInfo> products;
+        private final List<Integer> missing = new ArrayList<>();
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicInteger done = new AtomicInteger();
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+        private boolean closed;
+
+        Pricing(TourCmsClient client, List<JsonNode> productNodes) {
+            this.client = client;
+            this.productNodes = productNodes;
+            this.products = new ArrayList<>(productNodes.size());
+            for (JsonNode productNode : productNodes) {
+                products.add(Mapping.mapBasicProductInfo(productNode));
+            }
+        }
+
+        synchronized void set(int index, List<PricingCategory> pricingCategories) {
+            if (!closed) {
+                products.get(index).setPricingCategories(pricingCategories);
+            }
+        }
+
+        /**
+         * Gives every product still without pricing categories its from price.
+         */
+        void close() {
+            int fallbacks = 0;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                for (int index : missing) {
+                    BasicProductInfo product = products.get(index);
+                    if (product.getPricingCategories() == null || product.getPricingCategories().isEmpty()) {
+                        product.setPricingCategories(Mapping.mapFromPriceCategory(productNodes.get(index)));
+                        fallbacks++;
+                    }
+                }
+            }
+            if (fallbacks > 0) {
+                AppLogger.info(TAG, String.format("Priced %d of %d products with their from price", fallbacks, products.size()));
+            }
+            result.complete(null);
+        }
+    }
+
+    private static final class Snapshot {
+        private final List<BasicProductInfo> products;
+        private final long fetchedAt;
+
+        Snapshot(List<BasicProductInfo> products, long fetchedAt) {
+            this.products = products;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private static final class Catalog {
+        private volatile TourCmsClient client;
+        private final String filterIds;
+        private volatile Snapshot snapshot;
+        private volatile long lastSearchedAt = System.currentTimeMillis();
+        // Guarded by the catalog
+        private CompletableFuture<Snapshot> refreshing;
+
+        Catalog(TourCmsClient client, String filterIds) {
+            this.client = client;
+            this.filterIds = filterIds;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package io.bokun.inventory.plugin.tourcms.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.gson.Gson;
+import com.google.inject.Inject;
+import io.bokun.inventory.plugin.api.rest.ProductDescription;
+import io.bokun.inventory.plugin.tourcms.api.TourCmsClient;
+import io.bokun.inventory.plugin.tourcms.model.ProductRateMapping;
+import io.bokun.inventory.plugin.tourcms.util.AppLogger;
+import io.bokun.inventory.plugin.tourcms.util.Mapping;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Built {@link ProductDescription}s per (marketplace, channel, tour).
+ * <p>
+ * Entries are refreshed in the background once older than {@code TOURCMS_PRODUCT_CACHE_REFRESH_MINUTES}: the
+ * caller still gets the cached description, and a failed refresh keeps it. Entries expire after
+ * {@code TOURCMS_PRODUCT_CACHE_TTL_MINUTES} whatever happens, and as soon as the tour's rates are seen to change.
+ * <p>
+ * Descriptions restored from a {@link CacheSnapshot} are returned as they are on first use, while the tour is
+ * fetched again in the background.
+ */
+public class ProductDescriptionCache {
+
+    private static final String TAG = ProductDescriptionCache.class.getSimpleName();
+
+    private static final long TTL_MINUTES = System.getenv("TOURCMS_PRODUCT_CACHE_TTL_MINUTES") != null
+            ? Long.parseLong(System.getenv("TOURCMS_PRODUCT_CACHE_TTL_MINUTES"))
+            : 60L;
+
+    private static final long REFRESH_MINUTES = System.getenv("TOURCMS_PRODUCT_CACHE_REFRESH_MINUTES") != null
+            ? Long.parseLong(System.getenv("TOURCMS_PRODUCT_CACHE_REFRESH_MINUTES"))
+            : 15L;
+
+    private static final long MAX_SIZE = System.getenv("TOURCMS_PRODUCT_CACHE_MAX_SIZE") != null
+            ? Long.parseLong(System.getenv("TOURCMS_PRODUCT_CACHE_MAX_SIZE"))
+            : 2000L;
+
+    private final ProductRateCache productRateCache;
+
+    private final LoadingCache<TourKey, Cached> cache = CacheBuilder.newBuilder()
+            .maximumSize(MAX_SIZE)
+            .expireAfterWrite(TTL_MINUTES, TimeUnit.MINUTES)
+            .refreshAfterWrite(REFRESH_MINUTES, TimeUnit.MINUTES)
+            .recordStats()
+            .build(new CacheLoader<TourKey, Cached>() {
+                @Override
+                public Cached load(TourKey key) throws Exception {
+                    return fetch(key, clientOf(key)).get();
+                }
+
+                @Override
+                public ListenableFuture<Cached> reload(TourKey key, Cached oldValue) {
+                    SettableFuture<Cached> reloaded = SettableFuture.create();
+                    fetch(key, clientOf(key)).whenComplete((description, error) -> {
+                        if (error != null) {
+                            AppLogger.warn(TAG, String.format("Keeping cached tour %s, refresh failed: %s", key.tourId, error.getMessage()));
+                            reloaded.setException(error);
+                        } else {
+                            reloaded.set(description);
+                        }
+                    });
+                    return reloaded;
+                }
+            });
+
+    // Read from a snapshot and not fetched again yet
+    private final ConcurrentMap<TourKey, Cached> restored = new ConcurrentHashMap<>();
+
+    // Latest client per marketplace:channel, background refreshes sign with the key the channel uses now
+    private final ConcurrentMap<String, TourCmsClient> clients = new ConcurrentHashMap<>();
+
+    @Inject
+    public ProductDescriptionCache(ProductRateCache productRateCache) {
+        this.productRateCache = productRateCache;
+    }
+
+    /**
+     * @return the cached description, or one fetched from TourCMS (and cached) on a miss. Never blocks.
+     */
+    public CompletableFuture<ProductDescription> get(TourCmsClient client, String tourId) {
+        TourKey key = TourKey.of(client, tourId);
+        clients.put(client.marketplaceId + ":" + client.channelId, client);
+        // getIfPresent also schedules the background refresh of an old entry
+        Cached cached = cache.getIfPresent(key);
+        if (cached != null && cached.rateVersion == productRateCache.version(client, tourId)) {
+            return CompletableFuture.completedFuture(cached.description);
+        }
+        if (cached == null) {
+            Cached restoredEntry = restored.get(key);
+            if (restoredEntry != null && System.currentTimeMillis() - restoredEntry.fetchedAt < CacheSnapshot.MAX_AGE_MILLIS) {
+                revalidate(key, restoredEntry);
+                return CompletableFuture.completedFuture(restoredEntry.description);
+            }
+        }
+        return fetch(key, client).thenApply(fetched -> {
+            cache.put(key, fetched);
+            restored.remove(key);
+            return fetched.description;
+        });
+    }
+
+    public void invalidate(String tourId) {
+        cache.asMap().keySet().removeIf(key -> key.tourId.equals(tourId));
+        restored.keySet().removeIf(key -> key.tourId.equals(tourId));
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+        restored.clear();
+    }
+
+    public Map<String, Object> metrics() {
+        CacheStats stats = cache.stats();
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("size", cache.size());
+        metrics.put("hitRate", stats.hitRate());
+        metrics.put("loads", stats.loadCount());
+        metrics.put("loadFailures", stats.loadExceptionCount());
+        metrics.put("evictions", stats.evictionCount());
+        metrics.put("restored", restored.size());
+        return metrics;
+    }
+
+    void writeSnapshot(DataOutputStream out) throws IOException {
+        Map<TourKey, Cached> entries = new HashMap<>(restored);
+        entries.putAll(cache.asMap());
+
+        Gson gson = new Gson();
+        out.writeInt(entries.size());
+        for (Map.Entry<TourKey, Cached> entry : entries.entrySet()) {
+            CacheSnapshot.writeTourKey(out, entry.getKey());
+            out.writeLong(entry.getValue().fetchedAt);
+            out.writeInt(entry.getValue().rateVersion);
+            CacheSnapshot.writeBytes(out, gson.toJson(entry.getValue().description).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * @return number of descriptions restored
+     */
+    int readSnapshot(ByteBuffer in, long oldestFetchedAt) {
+        Gson gson = new Gson();
+        int count = 0;
+        int entryCount = in.getInt();
+        for (int i = 0; i < entryCount; i++) {
+            TourKey key = CacheSnapshot.readTourKey(in);
+            long fetchedAt = in.getLong();
+            int rateVersion = in.getInt();
+            byte[] json = CacheSnapshot.readBytes(in);
+            if (fetchedAt >= oldestFetchedAt) {
+                ProductDescription description = gson.fromJson(new String(json, StandardCharsets.UTF_8), ProductDescription.class);
+                restored.putIfAbsent(key, new Cached(description, rateVersion, fetchedAt));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Fetches a restored tour again in the background, once.
+     */
+    private void revalidate(TourKey key, Cached restoredEntry) {
+        if (!restoredEntry.revalidating.compareAndSet(false, true)) {
+            return;
+        }
+        fetch(key, clientOf(key)).whenComplete((fetched, error) -> {
+            if (error != null) {
+                restoredEntry.revalidating.set(false);
+                AppLogger.warn(TAG, String.format("Couldn't revalidate restored tour %s: %s", key.tourId, error.getMessage()));
+                return;
+            }
+            cache.put(key, fetched);
+            restored.remove(key, restoredEntry);
+        });
+    }
+
+    private TourCmsClient clientOf(TourKey key) {
+        return clients.get(key.marketplaceId + ":" + key.channelId);
+    }
+
+    private CompletableFuture<Cached> fetch(TourKey key, TourCmsClient client) {
+        Map<String, Object> tourDeparturesParams = new HashMap<>();
+        tourDeparturesParams.put("id", key.tourId);
+        tourDeparturesParams.put("per_page", 30);
+
+        // Both calls go out together
+        CompletableFuture<JsonNode> productFuture = client.getTourAsync(key.tourId, true);
+        CompletableFuture<JsonNode> tourDeparturesFuture = client.getTourDeparturesAsync(tourDeparturesParams);
+        return productFuture.thenCombine(tourDeparturesFuture, (productNode, tourDeparturesNode) -> {
+            JsonNode departures = tourDeparturesNode.path("tour").path("dates_and_prices").path("departure");
+            ProductRateMapping productRateMapping = productRateCache.observe(client, key.tourId,
+                    departures.isArray() ? departures : Collections.singletonList(departures));
+            return new Cached(Mapping.mapProductDescription(productNode, productRateMapping),
+                    productRateCache.version(client, key.tourId), System.currentTimeMillis());
+        });
+    }
+
+    private static final class Cached {
+        private final ProductDescription description;
+        private final int rateVersion;
+        private final long fetchedAt;
+        private final AtomicBoolean revalidating = new AtomicBoolean();
+
+        Cached(ProductDescription description, int rateVersion, long fetchedAt) {
+            this.description = description;
+            this.rateVersion = rateVersion;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+}
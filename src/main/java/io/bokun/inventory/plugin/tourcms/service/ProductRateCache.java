@@ -0,0 +1,154 @@
+package io.bokun.inventory.plugin.tourcms.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.bokun.inventory.plugin.api.rest.PricingCategory;
+import io.bokun.inventory.plugin.api.rest.Rate;
+import io.bokun.inventory.plugin.tourcms.api.TourCmsClient;
+import io.bokun.inventory.plugin.tourcms.model.ProductRateMapping;
+import io.bokun.inventory.plugin.tourcms.util.AppLogger;
+import io.bokun.inventory.plugin.tourcms.util.Mapping;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ProductRateMapping} per (marketplace, channel, tour), grown from every departure the plugin sees.
+ * <p>
+ * Rates, start times and pricing categories are collected across departures instead of being parsed again on
+ * every call; the mapping is only rebuilt when a departure brings something new. Its version is a hash of the
+ * collected set, caches derived from the mapping compare versions to find out they are stale. As rates removed by the supplier
+ * are never seen again, the collected set is started over after {@code TOURCMS_RATE_CACHE_TTL_MINUTES}.
+ */
+public class ProductRateCache {
+
+    private static final String TAG = ProductRateCache.class.getSimpleName();
+
+    private static final long TTL_MINUTES = System.getenv("TOURCMS_RATE_CACHE_TTL_MINUTES") != null
+            ? Long.parseLong(System.getenv("TOURCMS_RATE_CACHE_TTL_MINUTES"))
+            : 360L;
+
+    private static final long MAX_TOURS = System.getenv("TOURCMS_RATE_CACHE_MAX_TOURS") != null
+            ? Long.parseLong(System.getenv("TOURCMS_RATE_CACHE_MAX_TOURS"))
+            : 2000L;
+
+    private final Cache<TourKey, TourRates> tours = CacheBuilder.newBuilder()
+            .maximumSize(MAX_TOURS)
+            .expireAfterWrite(TTL_MINUTES, TimeUnit.MINUTES)
+            .build();
+
+    /**
+     * Adds what the departures bring to the tour's mapping.
+     *
+     * @return the mapping of everything seen so far for the tour
+     */
+    public ProductRateMapping observe(TourCmsClient client, String tourId, Iterable<JsonNode> departures) {
+        TourKey key = TourKey.of(client, tourId);
+        try {
+            return tours.get(key, TourRates::new).observe(key, departures);
+        } catch (ExecutionException e) {
+            // The loader can't throw
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the tour's mapping if departures of it were seen, otherwise null
+     */
+    public ProductRateMapping getIfPresent(TourCmsClient client, String tourId) {
+        TourRates rates = tours.getIfPresent(TourKey.of(client, tourId));
+        return rates != null ? rates.mapping() : null;
+    }
+
+    /**
+     * @return hash of the tour's rates, start times and pricing categories; 0 if none was collected
+     */
+    public int version(TourCmsClient client, String tourId) {
+        TourRates rates = tours.getIfPresent(TourKey.of(client, tourId));
+        return rates != null ? rates.version() : 0;
+    }
+
+    public void invalidate(String tourId) {
+        tours.asMap().keySet().removeIf(key -> key.tourId.equals(tourId));
+    }
+
+    public void invalidateAll() {
+        tours.invalidateAll();
+    }
+
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("tours", tours.size());
+        return metrics;
+    }
+
+    private static final class TourRates {
+        private final Map<String, Rate> rates = new LinkedHashMap<>();
+        private final Set<String> startTimes = new LinkedHashSet<>();
+        private final Map<String, PricingCategory> priceCategories = new LinkedHashMap<>();
+        private ProductRateMapping mapping;
+        private int version;
+
+        synchronized ProductRateMapping observe(TourKey key, Iterable<JsonNode> departures) {
+            boolean changed = false;
+            for (JsonNode departure : departures) {
+                changed |= add(departure);
+            }
+            if (changed || mapping == null) {
+                rebuild();
+                AppLogger.info(TAG, String.format("Rates of tour %s changed, version %d: %d rates, %d start times, %d pricing categories",
+                        key, version, mapping.getRates().size(), mapping.getStartTimes().size(), mapping.getPriceCategories().size()));
+            }
+            return mapping;
+        }
+
+        synchronized ProductRateMapping mapping() {
+            return mapping;
+        }
+
+        synchronized int version() {
+            return version;
+        }
+
+        private boolean add(JsonNode departure) {
+            boolean changed = false;
+
+            String note = departure.path("note").asText();
+            String supplierNote = departure.path("supplier_note").asText();
+            if (!note.isEmpty() && !supplierNote.isEmpty() && !rates.containsKey(supplierNote)) {
+                rates.put(supplierNote, new Rate()
+                        .id(supplierNote)
+                        .label(note.substring(0, 1).toUpperCase() + note.substring(1).toLowerCase()));
+                changed = true;
+            }
+
+            String startTime = departure.path("start_time").asText();
+            if (!startTime.trim().isEmpty()) {
+                changed |= startTimes.add(startTime);
+            }
+
+            for (JsonNode priceNode : Mapping.priceNodes(departure)) {
+                String rateId = priceNode.path("rate_id").asText();
+                if (!rateId.trim().isEmpty() && !priceCategories.containsKey(rateId)) {
+                    priceCategories.put(rateId, Mapping.mapPricingCategory(priceNode));
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+
+        private void rebuild() {
+            List<Rate> rateList = rates.isEmpty()
+                    ? Collections.singletonList(new Rate().id(Mapping.DEFAULT_RATE_ID).label(Mapping.DEFAULT_RATE_NAME))
+                    : new ArrayList<>(rates.values());
+            // Shared by every caller until the next change
+            mapping = new ProductRateMapping(
+                    Collections.unmodifiableList(rateList),
+                    Collections.unmodifiableList(new ArrayList<>(startTimes)),
+                    Collections.unmodifiableList(new ArrayList<>(priceCategories.values())));
+            version = Objects.hash(rates.keySet(), startTimes, priceCategories.keySet());
+        }
+    }
+}
@@ -1,38 +1,53 @@
 package io.bokun.inventory.plugin.tourcms.service;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.collect.ImmutableList;
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 import com.google.inject.Inject;
 import com.squareup.okhttp.OkHttpClient;
 import io.bokun.inventory.plugin.api.rest.*;
 import io.bokun.inventory.plugin.tourcms.Configuration;
 import io.bokun.inventory.plugin.tourcms.Main;
 import io.bokun.inventory.plugin.tourcms.api.BookingCustomerRepository;
+import io.bokun.inventory.plugin.tourcms.api.CircuitBreaker;
 import io.bokun.inventory.plugin.tourcms.api.TelegramClient;
 import io.bokun.inventory.plugin.tourcms.api.TourCmsClient;
+import io.bokun.inventory.plugin.tourcms.api.TourCmsClientRegistry;
+import io.bokun.inventory.plugin.tourcms.api.TourCmsUnavailableException;
 import io.bokun.inventory.plugin.tourcms.api.WebhookClient;
 import io.bokun.inventory.plugin.tourcms.model.*;
 import io.bokun.inventory.plugin.tourcms.util.AppLogger;
 import io.bokun.inventory.plugin.tourcms.util.EmailSender;
 import io.bokun.inventory.plugin.tourcms.util.Mapping;
 import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import io.undertow.util.SameThreadExecutor;
 
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import javax.annotation.Nonnull;
 import javax.xml.bind.JAXBException;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.time.LocalDate;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
 
 import static io.bokun.inventory.plugin.api.rest.PluginCapability.*;
 import static io.undertow.util.Headers.CONTENT_TYPE;
@@ -43,12 +58,43 @@ public class RestService {
     private static final String TAG = RestService.class.getSimpleName();
     private static final long DEFAULT_READ_TIMEOUT = 30L;
 
+    private static final int AVAILABILITY_CONCURRENCY = System.getenv("TOURCMS_AVAILABILITY_CONCURRENCY") != null
+            ? Integer.parseInt(System.getenv("TOURCMS_AVAILABILITY_CONCURRENCY"))
+            : 8;
+
+    // Below Bokun's own timeout, so late products still get an answer
+    private static final long AVAILABILITY_DEADLINE_MILLIS = System.getenv("TOURCMS_AVAILABILITY_DEADLINE_MS") != null
+            ? Long.parseLong(System.getenv("TOURCMS_AVAILABILITY_DEADLINE_MS"))
+            : 20000L;
+
+    // Shared secret of the admin endpoints, sent as X-Admin-Token; they are off when unset
+    private static final String ADMIN_TOKEN = System.getenv("TOURCMS_ADMIN_TOKEN");
+
+    private static final ScheduledExecutorService DEADLINES = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "availability-deadline");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private final OkHttpClient client;
+    private final ProductDescriptionCache productDescriptionCache;
+    private final AvailabilityCache availabilityCache;
+    private final ProductRateCache productRateCache;
+    private final AvailabilityWarmer availabilityWarmer;
+    private final CatalogCache catalogCache;
+    private final AvailabilityChangeFeed availabilityChangeFeed;
 
     @Inject
-    public RestService() {
+    public RestService(ProductDescriptionCache productDescriptionCache, AvailabilityCache availabilityCache, ProductRateCache productRateCache,
+                       AvailabilityWarmer availabilityWarmer, CatalogCache catalogCache, AvailabilityChangeFeed availabilityChangeFeed) {
         this.client = new OkHttpClient();
         client.setReadTimeout(DEFAULT_READ_TIMEOUT, SECONDS);
+        this.productDescriptionCache = productDescriptionCache;
+        this.availabilityCache = availabilityCache;
+        this.productRateCache = productRateCache;
+        this.availabilityWarmer = availabilityWarmer;
+        this.catalogCache = catalogCache;
+        this.availabilityChangeFeed = availabilityChangeFeed;
     }
 
     private PluginConfigurationParameter asStringParameter(String name, boolean required) {
@@ -94,340 +140,240 @@ public class RestService {
         exchange.getResponseSender().send(new Gson().toJson(definition));
     }
 
-    public void searchProducts(@Nonnull HttpServerExchange exchange) {
-        AppLogger.info(TAG, "Search products!");
-        SearchProductRequest request = new Gson().fromJson(new InputStreamReader(exchange.getInputStream()), SearchProductRequest.class);
-        String requestJson = new Gson().toJson(request);
-        AppLogger.info(TAG, String.format("- Request: %s", requestJson));
-
-        Configuration configuration = Configuration.fromRestParameters(request.getParameters());
-        TourCmsClient tourCmsClient = new TourCmsClient(configuration.marketplaceId, configuration.channelId, configuration.getTourcmsPrivateKey());
+    public void getMetrics(@Nonnull HttpServerExchange exchange) {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("circuitBreakers", CircuitBreaker.metrics());
+        metrics.put("productCache", productDescriptionCache.metrics());
+        metrics.put("availabilityCache", availabilityCache.metrics());
+        metrics.put("rateCache", productRateCache.metrics());
+        metrics.put("warmer", availabilityWarmer.metrics());
+        metrics.put("catalogCache", catalogCache.metrics());
+        metrics.put("changeFeed", availabilityChangeFeed.metrics());
 
-        List<BasicProductInfo> products = new ArrayList<>();
         exchange.getResponseHeaders().put(CONTENT_TYPE, "application/json; charset=utf-8");
-        AppLogger.info(TAG, String.format("Start fetching products from TourCMS: %s - %s - %s", tourCmsClient.marketplaceId, tourCmsClient.channelId, tourCmsClient.apiKey));
+        exchange.getResponseSender().send(new Gson().toJson(metrics));
+    }
 
-        String data = "";
-        Map<String, Object> params = new HashMap<>();
-        params.put("per_page", 200);
+    /**
+     * Drops cached product descriptions, availability and rates: those of {@code ?productId=} if given, otherwise all
+     * of them and the catalogs. Needs the {@code TOURCMS_ADMIN_TOKEN} in {@code X-Admin-Token}.
+     */
+    public void invalidateCache(@Nonnull HttpServerExchange exchange) {
+        if (!isAdmin(exchange)) {
+            AppLogger.warn(TAG, String.format("Refused cache invalidation from %s", exchange.getSourceAddress()));
+            exchange.setStatusCode(ADMIN_TOKEN == null || ADMIN_TOKEN.isEmpty() ? 404 : 403);
+            exchange.endExchange();
+            return;
+        }
+        Deque<String> productId = exchange.getQueryParameters().get("productId");
+        if (productId != null && !productId.isEmpty()) {
+            productDescriptionCache.invalidate(productId.getFirst());
+            availabilityCache.invalidate(productId.getFirst());
+            productRateCache.invalidate(productId.getFirst());
+            AppLogger.info(TAG, String.format("Invalidated cached product %s", productId.getFirst()));
+        } else {
+            productDescriptionCache.invalidateAll();
+            availabilityCache.invalidateAll();
+            productRateCache.invalidateAll();
+            catalogCache.invalidateAll();
+            AppLogger.info(TAG, "Invalidated all cached products");
+        }
+        exchange.setStatusCode(204);
+        exchange.endExchange();
+    }
 
-        if (configuration.filterIds != null && !configuration.filterIds.isEmpty()) {
-            params.put("tour_id", configuration.filterIds);
+    private static boolean isAdmin(HttpServerExchange exchange) {
+        if (ADMIN_TOKEN == null || ADMIN_TOKEN.isEmpty()) {
+            return false;
         }
-        try {
-            data = tourCmsClient.getTours(params);
-        } catch (IOException | NoSuchAlgorithmException | InvalidKeyException exception) {
-            AppLogger.error(TAG, "Couldn't get products", exception);
+        String token = exchange.getRequestHeaders().getFirst("X-Admin-Token");
+        // Constant time, so the token can't be guessed byte by byte
+        return token != null && MessageDigest.isEqual(
+                token.getBytes(StandardCharsets.UTF_8), ADMIN_TOKEN.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads the request body without blocking and hands it to the handler. The exchange stays open, with no
+     * thread held, until the returned future completes; its JSON is then sent from an XNIO worker thread.
+     */
+    private void handleAsync(HttpServerExchange exchange, BiFunction<HttpServerExchange, String, CompletableFuture<String>> handler) {
+        handleAsync(exchange, handler, (receivedExchange, json) -> receivedExchange.getResponseSender().send(json));
+    }
+
+    /**
+     * Same as {@link #handleAsync(HttpServerExchange, BiFunction)}, for handlers of large JSON arrays. The handler
+     * still builds the whole list before anything is sent; only its serialization is streamed, item by item straight
+     * to the response, chunked, so the JSON is never held as one string on top of the list.
+     */
+    private <T> void handleStreamingAsync(HttpServerExchange exchange, BiFunction<HttpServerExchange, String, CompletableFuture<List<T>>> handler) {
+        handleAsync(exchange, handler, RestService::writeJsonArray);
+    }
+
+    private <T> void handleAsync(HttpServerExchange exchange, BiFunction<HttpServerExchange, String, CompletableFuture<T>> handler,
+                                 BiConsumer<HttpServerExchange, T> sender) {
+        exchange.getRequestReceiver().receiveFullString((receivedExchange, body) -> receivedExchange.dispatch(SameThreadExecutor.INSTANCE, () -> {
+            CompletableFuture<T> response;
+            try {
+                response = handler.apply(receivedExchange, body);
+            } catch (RuntimeException e) {
+                response = new CompletableFuture<>();
+                response.completeExceptionally(e);
+            }
+
+            response.whenCompleteAsync((result, error) -> {
+                TourCmsUnavailableException unavailable = TourCmsUnavailableException.from(error);
+                if (unavailable != null) {
+                    AppLogger.warn(TAG, String.format("TourCMS unavailable for %s: %s", receivedExchange.getRequestPath(), unavailable.getMessage()));
+                    receivedExchange.setStatusCode(503);
+                    receivedExchange.getResponseHeaders().put(Headers.RETRY_AFTER, Math.max(1L, (unavailable.getRetryAfterMillis() + 999) / 1000));
+                    receivedExchange.getResponseHeaders().put(CONTENT_TYPE, "application/json; charset=utf-8");
+                    receivedExchange.getResponseSender().send("{'message':'TourCMS is unavailable, try later'}");
+                    return;
+                }
+                if (error != null) {
+                    AppLogger.error(TAG, "Couldn't handle request " + receivedExchange.getRequestPath(), error);
+                    receivedExchange.setStatusCode(500);
+                    receivedExchange.getResponseSender().send("{'message':'Internal error'}");
+                    return;
+                }
+                receivedExchange.getResponseHeaders().put(CONTENT_TYPE, "application/json; charset=utf-8");
+                sender.accept(receivedExchange, result);
+            }, receivedExchange.getConnection().getWorker());
+        }));
+    }
+
+    /**
+     * Writes the items as a JSON array to the response. Blocks, so only call it from a worker thread.
+     */
+    private static void writeJsonArray(HttpServerExchange exchange, List<?> items) {
+        exchange.startBlocking();
+        Gson gson = new Gson();
+        // Closing the writer ends the exchange
+        try (JsonWriter writer = gson.newJsonWriter(new BufferedWriter(new OutputStreamWriter(exchange.getOutputStream(), StandardCharsets.UTF_8)))) {
+            writer.beginArray();
+            for (Object item : items) {
+                gson.toJson(item, item.getClass(), writer);
+            }
+            writer.endArray();
+        } catch (IOException e) {
+            AppLogger.warn(TAG, String.format("Couldn't write response of %s: %s", exchange.getRequestPath(), e.getMessage()));
         }
+    }
 
-        if (data == null || data.isEmpty()) {
-            AppLogger.info(TAG, String.format("Empty res data: %s", data));
-            exchange.getResponseSender().send(new Gson().toJson(products));
-            return;
+    /**
+     * Rate limiting or an open circuit must reach Bokun as "try later", not as an empty or unavailable result.
+     */
+    private static void rethrowIfUnavailable(Throwable error) {
+        if (TourCmsUnavailableException.from(error) != null) {
+            throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
         }
+    }
 
-        int totalProducts = 0;
+    private static LocalDate toLocalDate(DateYMD date) {
+        return LocalDate.of(date.getYear(), date.getMonth(), date.getDay());
+    }
+
+    /**
+     * Takes the pax of a booking just committed in TourCMS off the cached availability.
+     */
+    private void allocateBooking(TourCmsClient tourCmsClient, String bookingId, ReservationData reservationData, String startTime) {
+        Map<String, Integer> paxByRate = new HashMap<>();
+        for (Reservation reservation : reservationData.getReservations()) {
+            paxByRate.merge(reservation.getRateId(), reservation.getPassengers().size(), Integer::sum);
+        }
         try {
-            JsonNode dataNode = Mapping.MAPPER.readTree(data);
-            totalProducts = dataNode.get("total_tour_count").asInt();
-            products = Mapping.mapProductsList(tourCmsClient, dataNode);
-        } catch (JsonProcessingException e) {
-            AppLogger.error(TAG, "Couldn't process products", e);
+            availabilityCache.allocate(tourCmsClient, bookingId, reservationData.getProductId(), toLocalDate(reservationData.getDate()), startTime, paxByRate);
+        } catch (RuntimeException e) {
+            AppLogger.error(TAG, String.format("Couldn't allocate booking %s in availability cache", bookingId), e);
         }
+    }
+
+    public void searchProducts(@Nonnull HttpServerExchange exchange) {
+        handleStreamingAsync(exchange, this::searchProducts);
+    }
+
+    private CompletableFuture<List<BasicProductInfo>> searchProducts(HttpServerExchange exchange, String body) {
+        AppLogger.info(TAG, "Search products!");
+        SearchProductRequest request = new Gson().fromJson(body, SearchProductRequest.class);
+        String requestJson = new Gson().toJson(request);
+        AppLogger.info(TAG, String.format("- Request: %s", requestJson));
+
+        Configuration configuration = Configuration.fromRestParameters(request.getParameters());
+        TourCmsClient tourCmsClient = TourCmsClientRegistry.get(configuration);
 
-        AppLogger.info(TAG, String.format(" - Return: %s products", totalProducts));
-        exchange.getResponseSender().send(new Gson().toJson(products));
+        AppLogger.info(TAG, String.format("Start fetching products from TourCMS: %s - %s - %s", tourCmsClient.marketplaceId, tourCmsClient.channelId, tourCmsClient.apiKey));
+
+        return catalogCache.get(tourCmsClient, configuration.filterIds)
+                .exceptionally(exception -> {
+                    rethrowIfUnavailable(exception);
+                    AppLogger.error(TAG, "Couldn't get products", exception);
+                    return Collections.emptyList();
+                })
+                .thenApply(products -> {
+                    if (products.isEmpty()) {
+                        AppLogger.info(TAG, "Empty res data: 0 products");
+                    } else {
+                        AppLogger.info(TAG, String.format(" - Return: %s products", products.size()));
+                    }
+                    return products;
+                });
     }
 
     public void getProductById(HttpServerExchange exchange) {
-        GetProductByIdRequest request = new Gson().fromJson(new InputStreamReader(exchange.getInputStream()), GetProductByIdRequest.class);
+        handleAsync(exchange, this::getProductById);
+    }
+
+    private CompletableFuture<String> getProductById(HttpServerExchange exchange, String body) {
+        GetProductByIdRequest request = new Gson().fromJson(body, GetProductByIdRequest.class);
         AppLogger.info(TAG, String.format("Get product by id: %s", request.getExternalId()));
         String requestJson = new Gson().toJson(request);
         AppLogger.info(TAG, String.format("- Request: %s", requestJson));
 
         Configuration configuration = Configuration.fromRestParameters(request.getParameters());
-        TourCmsClient tourCmsClient = new TourCmsClient(configuration.marketplaceId, configuration.channelId, configuration.getTourcmsPrivateKey());
+        TourCmsClient tourCmsClient = TourCmsClientRegistry.get(configuration);
 
         String id = request.getExternalId();
         if (id == null || id.isEmpty()) {
             String msg = String.format("Empty request external id: %s", id);
             AppLogger.info(TAG, msg);
             exchange.setStatusCode(400);
-            exchange.getResponseSender().send("{'message':'" + msg + "'}");
+            return CompletableFuture.completedFuture("{'message':'" + msg + "'}");
         }
 
-        Map<String, Object> tourDeparturesParams = new HashMap<>();
-        tourDeparturesParams.put("id", id);
-        tourDeparturesParams.put("per_page", 30);
-
-        try {
-            String tourShowResponse = tourCmsClient.getTour(id, true);
-//            AppLogger.info(TAG, String.format("TourCMS - getTour ID %s JSON: %s", id, Mapping.MAPPER.writeValueAsString(Mapping.MAPPER.readTree(productJson))));
-            String tourDeparturesResponse = tourCmsClient.getTourDepartures(tourDeparturesParams);
-            ProductRateMapping productRateMapping = Mapping.parseProductRates(tourDeparturesResponse);
-            List<String> startTimes = productRateMapping.getStartTimes();
-
-            JsonNode productNode = Mapping.MAPPER.readTree(tourShowResponse);
-            JsonNode product = productNode.get("tour");
-
-            ProductDescription description = new ProductDescription();
-            // 1. id
-            description.setId(product.get("tour_id").asText());
-            // 2. name
-            description.setName(product.get("tour_name").asText());
-            // 3. description
-            description.setDescription(product.get("shortdesc").asText());
-
-            // 3. pricingCategories
-            description.setPricingCategories(productRateMapping.getPriceCategories());
-            // 4. rates
-            description.setRates(productRateMapping.getRates());
-            // 5. bookingType
-            if (!startTimes.isEmpty()) {
-                description.setBookingType(BookingType.DATE_AND_TIME);
-            } else {
-                JsonNode dateType = product.path("new_booking").path("date_selection").path("date_type");
-                BookingType bookingType = BookingType.DATE;
-                if (dateType.isTextual()) {
-                    try {
-                        bookingType = BookingType.valueOf(dateType.asText());
-                        AppLogger.info(TAG, "Mapped booking type to: " + bookingType);
-                    } catch (IllegalArgumentException e) {
-                        AppLogger.warn(TAG, "Unknown booking type found in XML: " + dateType.asText() + ". Defaulting to DATE.");
-                    }
-                } else {
-                    AppLogger.warn(TAG, "date_type is not textual or missing. Defaulting to DATE.");
-                }
-                description.setBookingType(bookingType);
-            }
-
-            // 6. dropoffAvailable
-            JsonNode pickupOnRequest = product.path("pickup_on_request");
-            JsonNode pickupPoints = product.path("pickup_points");
-            boolean dropoffAvailable = pickupOnRequest.asInt() == 1 && pickupPoints.isArray() && !pickupPoints.isEmpty();
-            description.setDropoffAvailable(dropoffAvailable);
-
-            // 7. dropoffPlaces
-            if (dropoffAvailable) {
-                List<PickupDropoffPlace> pickupDropoffPlaces = new ArrayList<>();
-
-                for (JsonNode point : pickupPoints) {
-                    PickupDropoffPlace place = new PickupDropoffPlace();
-                    Address address = new Address();
-
-                    // Map thông tin từ XML sang Address
-                    address.setAddressLine1(point.path("address1").asText());
-                    address.setAddressLine2(point.path("address2").asText());
-                    address.setPostalCode(point.path("postcode").asText());
-
-                    // Lấy thông tin city và countryCode từ productNode (XML response)
-                    String city = product.path("location").asText(); // "location" trong XML là tên thành phố
-                    String countryCode = product.path("country").asText(); // "country" trong XML là mã quốc gia
-
-                    address.setCity(city);
-                    address.setCountryCode(countryCode);
-
-                    // Lấy geocode từ XML response
-                    String geocode = point.path("geocode").asText();
-                    if (!geocode.isEmpty()) {
-                        String[] geoParts = geocode.split(",");
-                        if (geoParts.length == 2) {
-                            GeoPoint geoPoint = new GeoPoint();
-                            geoPoint.setLatitude(Double.parseDouble(geoParts[0]));
-                            geoPoint.setLongitude(Double.parseDouble(geoParts[1]));
-                            address.setGeoPoint(geoPoint);
-                        }
-                    }
-
-                    // Set title
-                    place.setTitle(point.path("pickup_name").asText());
-                    place.setAddress(address);
-
-                    // Add vào list
-                    pickupDropoffPlaces.add(place);
-                }
-
-                description.setDropoffPlaces(pickupDropoffPlaces);
-                description.setCustomDropoffPlaceAllowed(false);
-            }
-
-            // 8. productCategory
-            description.setProductCategory(ProductCategory.ACTIVITIES);
-
-            // 9. ticketSupport
-            // Accommodation → TICKETS_NOT_REQUIRED
-            // Activities → TICKET_PER_PERSON
-            // Car Rentals → TICKETS_NOT_REQUIRED
-            // Transport → TICKET_PER_BOOKING
-            List<TicketSupport> ticketSupportList = new ArrayList<>();
-            ticketSupportList.add(TicketSupport.TICKET_PER_PERSON);
-            description.setTicketSupport(ticketSupportList);
-
-            // 10. countries
-            description.setCountries(ImmutableList.of(product.get("country").asText()));
-
-            // 11. cities
-            description.setCities(ImmutableList.of(product.get("location").asText()));
-
-            // 12. startTimes
-            if (description.getBookingType().equals(BookingType.DATE_AND_TIME)) {
-                JsonNode startTimeNode = product.path("start_time");
-                if (startTimeNode.isTextual() && startTimeNode.asText().contains(":") && !startTimes.contains(startTimeNode.asText())) {
-                    startTimes.add(startTimeNode.asText());
-                }
-                startTimes.sort((time1, time2) -> {
-                    String[] parts1 = time1.split(":");
-                    String[] parts2 = time2.split(":");
-
-                    int hour1 = Integer.parseInt(parts1[0]);
-                    int minute1 = Integer.parseInt(parts1[1]);
-                    int hour2 = Integer.parseInt(parts2[0]);
-                    int minute2 = Integer.parseInt(parts2[1]);
-
-                    if (hour1 == hour2) {
-                        return Integer.compare(minute1, minute2);
+        return productDescriptionCache.get(tourCmsClient, id)
+                .handle((description, exception) -> {
+                    if (exception != null) {
+                        rethrowIfUnavailable(exception);
+                        AppLogger.error(TAG, "Couldn't get product", exception);
+                        exchange.setStatusCode(500);
+                        return "{'message':'Could not get product'}";
                     }
-                    return Integer.compare(hour1, hour2);
+                    String response = new Gson().toJson(description);
+                    AppLogger.info(TAG, String.format("-> Response: %s", response));
+                    return response;
                 });
-                List<Time> startTimesList = new ArrayList<>();
-                for (String startTime : startTimes) {
-                    String[] timeParts = startTime.split(":");
-                    int hour = Integer.parseInt(timeParts[0]);
-                    int minute = Integer.parseInt(timeParts[1]);
-                    Time time = new Time();
-                    time.setHour(hour);
-                    time.setMinute(minute);
-                    startTimesList.add(time);
-                }
-                description.setStartTimes(startTimesList);
-            }
-
-            // 13. ticketType
-            JsonNode deliveryFormat = product.path("delivery_formats").path("delivery_format");
-            TicketType ticketType = TicketType.QR_CODE;
-            if (!deliveryFormat.isEmpty()) {
-                try {
-                    ticketType = TicketType.valueOf(deliveryFormat.asText());
-                } catch (IllegalArgumentException e) {
-                    AppLogger.error(TAG, String.format("Couldn't parse ticketType: %s", deliveryFormat.asText()), e);
-                }
-            }
-            description.setTicketType(ticketType);
-
-            // 14. meetingType
-            MeetingType meetingType;
-            boolean hasPickupPoints = product.path("pickup_points").isArray() && !product.path("pickup_points").isEmpty();
-            boolean hasPickupOnRequest = product.path("pickup_on_request").asInt(0) == 1;
-            if (hasPickupPoints) {
-                if (hasPickupOnRequest) {
-                    meetingType = MeetingType.MEET_ON_LOCATION_OR_PICK_UP;
-                } else {
-                    meetingType = MeetingType.PICK_UP;
-                }
-            } else {
-                meetingType = MeetingType.MEET_ON_LOCATION;
-            }
-            description.setMeetingType(meetingType);
-
-            // 15. customPickupPlaceAllowed
-            boolean customPickupPlaceAllowed = false;
-            // Nếu meetingType là MEET_ON_LOCATION_OR_PICK_UP hoặc PICK_UP thì cần check
-            if (meetingType == MeetingType.MEET_ON_LOCATION_OR_PICK_UP || meetingType == MeetingType.PICK_UP) {
-                customPickupPlaceAllowed = hasPickupOnRequest;
-            }
-            description.setCustomPickupPlaceAllowed(customPickupPlaceAllowed);
-
-            // 16. pickupMinutesBefore
-            Integer pickupMinutesBefore = null;
-            // Chỉ lấy giá trị nếu là MEET_ON_LOCATION_OR_PICK_UP hoặc PICK_UP
-            if (meetingType == MeetingType.MEET_ON_LOCATION_OR_PICK_UP || meetingType == MeetingType.PICK_UP) {
-                JsonNode pickupNode = product.path("pickup_minutes_before");
-                if (pickupNode.isInt()) {
-                    pickupMinutesBefore = pickupNode.asInt();
-                }
-            }
-            description.setPickupMinutesBefore(pickupMinutesBefore);
-
-            // 17. pickupPlaces
-            List<PickupDropoffPlace> pickupDropoffPlaces = new ArrayList<>();
-            if (meetingType == MeetingType.MEET_ON_LOCATION_OR_PICK_UP || meetingType == MeetingType.PICK_UP) {
-                JsonNode pickupPointsNode = product.path("pickup_points");
-                if (pickupPointsNode.isArray()) {
-                    for (JsonNode point : pickupPointsNode) {
-                        PickupDropoffPlace place = new PickupDropoffPlace();
-                        Address address = new Address();
-
-                        // Map các trường thông tin
-                        place.setTitle(point.path("pickup_name").asText());
-
-                        address.setAddressLine1(point.path("address1").asText());
-                        address.setAddressLine2(point.path("address2").asText());
-                        address.setCity(product.path("location").asText());
-                        address.setCountryCode(product.path("country").asText());
-
-                        // Geolocation nếu có
-                        String geocode = point.path("geocode").asText();
-                        if (geocode.contains(",")) {
-                            String[] coordinates = geocode.split(",");
-                            GeoPoint geoPoint = new GeoPoint();
-                            geoPoint.setLatitude(Double.parseDouble(coordinates[0]));
-                            geoPoint.setLongitude(Double.parseDouble(coordinates[1]));
-                            address.setGeoPoint(geoPoint);
-                        }
-
-                        place.setAddress(address);
-                        pickupDropoffPlaces.add(place);
-                    }
-                }
-            }
-            description.setPickupPlaces(pickupDropoffPlaces);
-
-            // 18. Extra
-            List<Extra> extras = new ArrayList<>();
-            JsonNode alternativeTours = product.path("options").path("option");
-            if (!alternativeTours.isEmpty()) {
-                List<JsonNode> alternativeToursList = alternativeTours.isArray() ?
-                        ImmutableList.copyOf(alternativeTours) :
-                        ImmutableList.of(alternativeTours);
-                for (JsonNode item : alternativeToursList) {
-                    Extra extra = new Extra();
-                    extra.setId(item.get("option_id").asText());
-                    extra.setTitle(item.get("option_name").asText());
-                    extra.setDescription(item.get("short_description").asText());
-                    extra.setOptional(true);                  // Giả định là tất cả đều optional
-                    extra.setMaxPerBooking(1);                // Giả định chỉ đặt 1 lần mỗi booking
-                    extra.setLimitByPax(false);               // Không giới hạn theo số người
-                    extra.setIncreasesCapacity(false);        // Không tăng số lượng người cho phép
-                    extras.add(extra);
-                }
-            }
-            description.setExtras(ImmutableList.copyOf(extras));
-
-            exchange.getResponseHeaders().put(CONTENT_TYPE, "application/json; charset=utf-8");
-            String response = new Gson().toJson(description);
-            AppLogger.info(TAG, String.format("-> Response: %s", response));
-            exchange.getResponseSender().send(response);
-        } catch (IOException | NoSuchAlgorithmException | InvalidKeyException exception) {
-            AppLogger.error(TAG, "Couldn't get product", exception);
-            exchange.setStatusCode(500);
-            exchange.getResponseSender().send("{'message':'Could not get product'}");
-        }
     }
 
     public void getAvailableProducts(HttpServerExchange exchange) {
-        ProductsAvailabilityRequest request = new Gson().fromJson(new InputStreamReader(exchange.getInputStream()), ProductsAvailabilityRequest.class);
+        handleAsync(exchange, this::getAvailableProducts);
+    }
+
+    private CompletableFuture<String> getAvailableProducts(HttpServerExchange exchange, String body) {
+        ProductsAvailabilityRequest request = new Gson().fromJson(body, ProductsAvailabilityRequest.class);
         AppLogger.info(TAG, String.format("Get available products: %s", request.getExternalProductIds()));
         String requestJson = new Gson().toJson(request);
         AppLogger.info(TAG, String.format("- Request: %s", requestJson));
 
         Configuration configuration = Configuration.fromRestParameters(request.getParameters());
-        TourCmsClient tourCmsClient = new TourCmsClient(configuration.marketplaceId, configuration.channelId, configuration.getTourcmsPrivateKey());
+        TourCmsClient tourCmsClient = TourCmsClientRegistry.get(configuration);
 
         DatePeriod range = request.getRange();
         long requiredCapacity = request.getRequiredCapacity();
         List<String> externalProductIds = request.getExternalProductIds();
         String startDate = String.format("%04d-%02d-%02d", range.getFrom().getYear(), range.getFrom().getMonth(), range.getFrom().getDay());
         String endDate = String.format("%04d-%02d-%02d", range.getTo().getYear(), range.getTo().getMonth(), range.getTo().getDay());
+        LocalDate from = toLocalDate(range.getFrom());
+        LocalDate to = toLocalDate(range.getTo());
 
         List<String> filterIds = (configuration.filterIds != null && !configuration.filterIds.isEmpty())
                 ? Arrays.asList(configuration.filterIds.split(","))
@@ -441,226 +387,207 @@ public class RestService {
                 .filter(id -> !allowExternalProductIds.contains(id))
                 .collect(Collectors.toList());
 
-        List<ProductsAvailabilityResponse> productsAvailabilityResponses = new ArrayList<>();
+        availabilityWarmer.track(configuration, tourCmsClient);
+        allowExternalProductIds.forEach(productId -> availabilityWarmer.touch(tourCmsClient, productId));
+
+        List<CompletableFuture<ProductsAvailabilityResponse>> productsAvailabilityResponses = new ArrayList<>();
+        // Products not cached, checked against TourCMS with at most AVAILABILITY_CONCURRENCY calls in flight
+        List<String> liveProductIds = new ArrayList<>();
+        List<CompletableFuture<ProductsAvailabilityResponse>> liveResponses = new ArrayList<>();
+        // Products answered from the cache or by TourCMS, and why TourCMS turned a chunk away, if it did
+        AtomicInteger checked = new AtomicInteger();
+        AtomicReference<Throwable> unavailable = new AtomicReference<>();
 
         notAllowExternalProductIds.forEach(productId -> {
             AppLogger.info(TAG, String.format("- Product ID %s is not allow in %s -> Set false", "TOURCMS_FILTER_IDS", productId));
-            productsAvailabilityResponses.add(new ProductsAvailabilityResponse()
+            productsAvailabilityResponses.add(CompletableFuture.completedFuture(new ProductsAvailabilityResponse()
                     .productId(productId)
                     .actualCheckDone(false)
-            );
+            ));
         });
 
+        // Results keep the request order
         allowExternalProductIds.forEach(productId -> {
             AppLogger.info(TAG, String.format("- Checking for product ID: %s", productId));
 
-            Map<String, Object> params = new HashMap<>();
-            params.put("id", productId);
-            params.put("distinct_start_dates", 1);
-            params.put("startdate_start", startDate);
-            params.put("startdate_end", endDate);
+            Long cachedCapacity = availabilityCache.getMinCapacity(tourCmsClient, productId, from, to);
+            if (cachedCapacity != null) {
+                AppLogger.info(TAG, String.format("- Product ID: %s -> Cached Min Capacity: %d. RequiredCapacity: %d -> %s", productId, cachedCapacity, requiredCapacity, requiredCapacity <= cachedCapacity));
+                checked.incrementAndGet();
+                productsAvailabilityResponses.add(CompletableFuture.completedFuture(new ProductsAvailabilityResponse()
+                        .productId(productId)
+                        .actualCheckDone(requiredCapacity <= cachedCapacity)
+                ));
+                return;
+            }
 
-            try {
-                String toursByDatesResponse = tourCmsClient.getToursByDates(params);
-//                AppLogger.info(TAG, String.format("TourCMS - getToursByDates %s JSON: %s", params, Mapping.MAPPER.writeValueAsString(Mapping.MAPPER.readTree(toursResponse))));
+            CompletableFuture<ProductsAvailabilityResponse> liveResponse = new CompletableFuture<>();
+            liveProductIds.add(productId);
+            liveResponses.add(liveResponse);
+            productsAvailabilityResponses.add(liveResponse);
+        });
 
-                JsonNode datesNode = Mapping.MAPPER.readTree(toursByDatesResponse)
-                        .path("dates_and_prices")
-                        .path("date");
+        if (!liveProductIds.isEmpty()) {
+            Set<CompletableFuture<?>> chunkCalls = ConcurrentHashMap.newKeySet();
+            ScheduledFuture<?> deadline = DEADLINES.schedule(() -> {
+                for (int i = 0; i < liveProductIds.size(); i++) {
+                    if (liveResponses.get(i).complete(new ProductsAvailabilityResponse().productId(liveProductIds.get(i)).actualCheckDone(false))) {
+                        AppLogger.warn(TAG, String.format("- Product ID: %s -> No answer within %d ms -> Set false", liveProductIds.get(i), AVAILABILITY_DEADLINE_MILLIS));
+                    }
+                }
+                // Nobody waits for them any more, they'd only use up rate limiter tokens
+                chunkCalls.forEach(call -> call.cancel(true));
+            }, AVAILABILITY_DEADLINE_MILLIS, TimeUnit.MILLISECONDS);
+            CompletableFuture.allOf(liveResponses.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, error) -> deadline.cancel(false));
+
+            // Products are asked for in chunks, one TourCMS search per chunk
+            int chunks = (liveProductIds.size() + TourCmsClient.TOURS_BY_DATES_BATCH_SIZE - 1) / TourCmsClient.TOURS_BY_DATES_BATCH_SIZE;
+            AtomicInteger next = new AtomicInteger();
+            for (int lane = 0; lane < Math.min(AVAILABILITY_CONCURRENCY, chunks); lane++) {
+                checkNextChunk(tourCmsClient, liveProductIds, liveResponses, chunkCalls, checked, unavailable, next, startDate, endDate, requiredCapacity);
+            }
+        }
+
+        return CompletableFuture.allOf(productsAvailabilityResponses.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> {
+                    if (checked.get() == 0 && unavailable.get() != null) {
+                        // Not one product could be checked, Bokun should try again later rather than take them all as unavailable
+                        rethrowIfUnavailable(unavailable.get());
+                    }
+                    List<ProductsAvailabilityResponse> responses = productsAvailabilityResponses.stream()
+                            .map(CompletableFuture::join)
+                            .collect(Collectors.toList());
+                    String response = new Gson().toJson(responses);
+                    AppLogger.info(TAG, String.format("-> Response: %s", response));
+                    return response;
+                });
+    }
 
-                long minCapacity = StreamSupport.stream(datesNode.spliterator(), false)
-                        .filter(date -> "OPEN".equals(date.path("status").asText()))
-                        .map(date -> date.path("spaces_remaining").asText())
-                        .filter(value -> !value.isEmpty() && value.matches("\\d+")) // Chỉ lấy giá trị không rỗng và là số
-                        .mapToLong(Long::parseLong)
-                        .min()
-                        .orElse(0);
+    /**
+     * Checks the next chunk of products against TourCMS, then the one after it, until none is left. Products
+     * already answered (past the deadline) are left out of the chunk. A chunk TourCMS turns away (rate limited, circuit
+     * open) is answered as unavailable, the error kept in {@code unavailable}; the other chunks are still checked.
+     */
+    private void checkNextChunk(TourCmsClient tourCmsClient, List<String> productIds, List<CompletableFuture<ProductsAvailabilityResponse>> responses,
+                                Set<CompletableFuture<?>> chunkCalls, AtomicInteger checked, AtomicReference<Throwable> unavailable,
+                                AtomicInteger next, String startDate, String endDate, long requiredCapacity) {
+        List<Integer> pending = new ArrayList<>();
+        while (pending.isEmpty()) {
+            int first = next.getAndIncrement() * TourCmsClient.TOURS_BY_DATES_BATCH_SIZE;
+            if (first >= productIds.size()) {
+                return;
+            }
+            for (int index = first; index < Math.min(first + TourCmsClient.TOURS_BY_DATES_BATCH_SIZE, productIds.size()); index++) {
+                if (!responses.get(index).isDone()) {
+                    pending.add(index);
+                }
+            }
+        }
 
-                AppLogger.info(TAG, String.format("- Product ID: %s -> Min Capacity Found: %d. RequiredCapacity: %d -> %s", productId, minCapacity, requiredCapacity, requiredCapacity <= minCapacity));
+        List<String> chunk = pending.stream().map(productIds::get).distinct().collect(Collectors.toList());
+        Map<String, Object> params = new HashMap<>();
+        params.put("startdate_start", startDate);
+        params.put("startdate_end", endDate);
 
-                productsAvailabilityResponses.add(new ProductsAvailabilityResponse()
-                        .productId(productId)
-                        .actualCheckDone(requiredCapacity <= minCapacity)
-                );
+        CompletableFuture<Map<String, List<JsonNode>>> chunkCall = tourCmsClient.getToursByDatesAsync(chunk, params);
+        chunkCalls.add(chunkCall);
+        chunkCall.whenComplete((datesByTour, exception) -> {
+            chunkCalls.remove(chunkCall);
+            try {
+                if (chunkCall.isCancelled()) {
+                    // Past the deadline, the responses are complete already
+                    return;
+                }
+                if (exception != null) {
+                    if (TourCmsUnavailableException.from(exception) != null) {
+                        unavailable.set(exception);
+                        AppLogger.warn(TAG, String.format("- Products %s -> TourCMS unavailable (%s) -> Set false", chunk, exception.getMessage()));
+                    } else {
+                        AppLogger.error(TAG, String.format("Couldn't get tours by dates: %s %s", chunk, params), exception);
+                    }
+                    pending.forEach(index -> responses.get(index).complete(new ProductsAvailabilityResponse()
+                            .productId(productIds.get(index))
+                            .actualCheckDone(false)));
+                    return;
+                }
 
-            } catch (IOException | NoSuchAlgorithmException | InvalidKeyException e) {
-                AppLogger.error(TAG, String.format("Couldn't get tour by dates: %s", params), e);
-                productsAvailabilityResponses.add(new ProductsAvailabilityResponse()
-                        .productId(productId)
-                        .actualCheckDone(false)
-                );
+                for (int index : pending) {
+                    String productId = productIds.get(index);
+                    checked.incrementAndGet();
+                    long minCapacity = minCapacity(datesByTour.getOrDefault(productId, Collections.emptyList()));
+                    AppLogger.info(TAG, String.format("- Product ID: %s -> Min Capacity Found: %d. RequiredCapacity: %d -> %s", productId, minCapacity, requiredCapacity, requiredCapacity <= minCapacity));
+                    responses.get(index).complete(new ProductsAvailabilityResponse()
+                            .productId(productId)
+                            .actualCheckDone(requiredCapacity <= minCapacity));
+                }
+            } catch (RuntimeException e) {
+                pending.forEach(index -> responses.get(index).completeExceptionally(e));
+            } finally {
+                checkNextChunk(tourCmsClient, productIds, responses, chunkCalls, checked, unavailable, next, startDate, endDate, requiredCapacity);
             }
         });
+    }
 
-        exchange.getResponseHeaders().put(CONTENT_TYPE, "application/json; charset=utf-8");
-        String response = new Gson().toJson(productsAvailabilityResponses);
-        AppLogger.info(TAG, String.format("-> Response: %s", response));
-        exchange.getResponseSender().send(response);
+    /**
+     * @param dates datesndeals entries of one tour, one per departure
+     * @return the lowest over the days of the most spaces left on an OPEN departure that day; 0 if there is none
+     */
+    private static long minCapacity(List<JsonNode> dates) {
+        Map<String, Long> maxByDay = new HashMap<>();
+        for (JsonNode date : dates) {
+            int spacesRemaining = Mapping.spacesRemaining(date);
+            // Chỉ lấy giá trị không rỗng và là số
+            if (Mapping.isOpen(date) && spacesRemaining >= 0) {
+                maxByDay.merge(date.path("start_date").asText(), (long) spacesRemaining, Math::max);
+            }
+        }
+        return maxByDay.values().stream().mapToLong(Long::longValue).min().orElse(0);
     }
 
     public void getProductAvailability(HttpServerExchange exchange) {
-        ProductAvailabilityRequest request = new Gson().fromJson(new InputStreamReader(exchange.getInputStream()), ProductAvailabilityRequest.class);
+        handleStreamingAsync(exchange, this::getProductAvailability);
+    }
+
+    private CompletableFuture<List<ProductAvailabilityWithRatesResponse>> getProductAvailability(HttpServerExchange exchange, String body) {
+        ProductAvailabilityRequest request = new Gson().fromJson(body, ProductAvailabilityRequest.class);
         AppLogger.info(TAG, String.format("Get product availability: %s", request.getProductId()));
         String requestJson = new Gson().toJson(request);
         AppLogger.info(TAG, String.format("- Request: %s", requestJson));
 
         Configuration configuration = Configuration.fromRestParameters(request.getParameters());
-        TourCmsClient tourCmsClient = new TourCmsClient(configuration.marketplaceId, configuration.channelId, configuration.getTourcmsPrivateKey());
+        TourCmsClient tourCmsClient = TourCmsClientRegistry.get(configuration);
 
         DatePeriod range = request.getRange();
         String productId = request.getProductId();
-        String startDateStart = String.format("%04d-%02d-%02d", range.getFrom().getYear(), range.getFrom().getMonth(), range.getFrom().getDay());
-        String startDateEnd = String.format("%04d-%02d-%02d", range.getTo().getYear(), range.getTo().getMonth(), range.getTo().getDay());
-
-        List<ProductAvailabilityWithRatesResponse> productAvailabilityWithRatesResponses = new ArrayList<>();
-        Map<String, ProductAvailabilityWithRatesResponse> responseMap = new HashMap<>();
-
-        int page = 1;
-        int perPage = 100;
-        Map<String, Object> params = new HashMap<>();
-        params.put("id", productId);
-        params.put("start_date_start", startDateStart);
-        params.put("start_date_end", startDateEnd);
-        params.put("per_page", perPage);
-        params.put("page", page);
-
-        try {
-            String tourDeparturesResponse = tourCmsClient.getTourDepartures(params);
-            ProductRateMapping productRateMapping = Mapping.parseProductRates(tourDeparturesResponse);
-            JsonNode tourNode = Mapping.MAPPER.readTree(tourDeparturesResponse).path("tour");
-            List<JsonNode> departuresNodeList = new ArrayList<>();
-
-            if (!tourNode.isMissingNode()) {
-                int total = tourNode.path("dates_and_prices").path("total_departure_count").asInt(0);
-                JsonNode departuresNode = tourNode.path("dates_and_prices").path("departure");
-
-                if (departuresNode.isArray()) {
-                    departuresNodeList.addAll(ImmutableList.copyOf(departuresNode));
-                } else {
-                    departuresNodeList.add(departuresNode);
-                }
-
-                int totalPages = (int) Math.ceil((double) total / perPage);
+        LocalDate from = toLocalDate(range.getFrom());
+        LocalDate to = toLocalDate(range.getTo());
 
-                for (int i = 2; i <= totalPages; i++) {
-                    AppLogger.info(TAG, "Fetching page " + i + " of " + totalPages);
-                    params.put("page", i);
-                    String response = tourCmsClient.getTourDepartures(params);
-                    JsonNode nextTourNode = Mapping.MAPPER.readTree(response).path("tour");
-                    JsonNode nextDeparturesNode = nextTourNode.path("dates_and_prices").path("departure");
+        availabilityWarmer.track(configuration, tourCmsClient);
+        availabilityWarmer.touch(tourCmsClient, productId);
 
-                    if (nextDeparturesNode.isArray()) {
-                        departuresNodeList.addAll(ImmutableList.copyOf(nextDeparturesNode));
-                    } else if (!nextDeparturesNode.isMissingNode()) {
-                        departuresNodeList.add(nextDeparturesNode);
+        return availabilityCache.getDepartures(tourCmsClient, productId, from, to)
+                .thenApply(tourDepartures -> {
+                    List<AvailabilityCache.Departure> departures = tourDepartures.getDepartures();
+                    if (departures.isEmpty()) {
+                        return new ArrayList<ProductAvailabilityWithRatesResponse>();
                     }
-                }
-
-                for (JsonNode departure : departuresNodeList) {
-                    String startDate = departure.path("start_date").asText(null);
-                    String startTime = departure.path("start_time").asText(null);
-                    int capacity = departure.path("spaces_remaining").asInt(0);
-                    String supplierNote = departure.path("supplier_note").asText();
-
-                    if (startDate != null && startTime != null) {
-                        LocalDate date = LocalDate.parse(startDate);
-                        DateYMD tourDate = new DateYMD();
-                        tourDate.setYear(date.getYear());
-                        tourDate.setMonth(date.getMonthValue());
-                        tourDate.setDay(date.getDayOfMonth());
-
-                        // Set Time
-                        Time time = null;
-                        if (startTime.contains(":")) {
-                            String[] timeParts = startTime.split(":");
-                            time = new Time();
-                            time.setHour(Integer.parseInt(timeParts[0]));
-                            time.setMinute(Integer.parseInt(timeParts[1]));
-                        }
-
-                        // Main Price
-                        JsonNode mainPriceNode = departure.path("main_price");
-                        if (!mainPriceNode.isMissingNode()) {
-                            RateWithPrice mainRate = Mapping.mapRate(productRateMapping, supplierNote, mainPriceNode, tourNode.path("sale_currency").asText(), true);
-
-                            String key = startDate + "_" + startTime + "_" + mainRate.getRateId();
-                            ProductAvailabilityWithRatesResponse response = responseMap.getOrDefault(key, new ProductAvailabilityWithRatesResponse());
-
-                            // Cập nhật thông tin cơ bản nếu chưa tồn tại
-                            if (response.getDate() == null) {
-                                response.setCapacity(capacity);
-                                response.setDate(tourDate);
-                                response.setTime(time);
-                                response.setRates(new ArrayList<>());
-                                response.getRates().add(mainRate);
-                            } else {
-                                // Merge pricingCategoryWithPrice
-                                response.getRates().get(0).getPricePerPerson()
-                                        .getPricingCategoryWithPrice()
-                                        .addAll(mainRate.getPricePerPerson().getPricingCategoryWithPrice());
-                            }
-
-                            if (mainRate.getPricePerBooking() != null) {
-                                response.getRates().get(0).setPricePerBooking(mainRate.getPricePerBooking());
-                            }
-
-                            responseMap.put(key, response);
-                        }
-
-                        // Extra Rates
-                        JsonNode extraRatesNode = departure.path("extra_rates").path("rate");
-                        if (extraRatesNode.isArray()) {
-                            for (JsonNode extraRateNode : extraRatesNode) {
-                                if (!extraRateNode.isMissingNode()) {
-                                    RateWithPrice extraRate = Mapping.mapRate(productRateMapping, supplierNote, extraRateNode, tourNode.path("sale_currency").asText(), false);
-
-                                    String key = startDate + "_" + startTime + "_" + extraRate.getRateId();
-                                    ProductAvailabilityWithRatesResponse extraResponse = responseMap.getOrDefault(key, new ProductAvailabilityWithRatesResponse());
-
-                                    if (extraResponse.getDate() == null) {
-                                        extraResponse.setCapacity(capacity);
-                                        extraResponse.setDate(tourDate);
-                                        extraResponse.setTime(time);
-                                        extraResponse.setRates(new ArrayList<>());
-                                        extraResponse.getRates().add(extraRate);
-                                    } else {
-                                        // Merge pricingCategoryWithPrice
-                                        extraResponse.getRates().get(0).getPricePerPerson()
-                                                .getPricingCategoryWithPrice()
-                                                .addAll(extraRate.getPricePerPerson().getPricingCategoryWithPrice());
-                                    }
-
-                                    responseMap.put(key, extraResponse);
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-        } catch (IOException | NoSuchAlgorithmException | InvalidKeyException e) {
-            AppLogger.error(TAG, String.format("Couldn't get tour by dates: %s", params), e);
-        }
-
-        // Sort kết quả
-        productAvailabilityWithRatesResponses = new ArrayList<>(responseMap.values());
-        productAvailabilityWithRatesResponses.sort(Comparator
-                .comparing((ProductAvailabilityWithRatesResponse p) -> p.getDate().getYear())
-                .thenComparing(p -> p.getDate().getMonth())
-                .thenComparing(p -> p.getDate().getDay())
-                .thenComparing(p -> p.getTime().getHour())
-                .thenComparing(p -> p.getTime().getMinute())
-        );
-
-        productAvailabilityWithRatesResponses = productAvailabilityWithRatesResponses.stream()
-                .filter(p -> p.getCapacity() > 0)
-                .collect(Collectors.toList());
 
-        // Set header và gửi response
-        exchange.getResponseHeaders().put(CONTENT_TYPE, "application/json; charset=utf-8");
-        String response = new Gson().toJson(productAvailabilityWithRatesResponses);
-         AppLogger.info(TAG, String.format("-> Response: %s items", productAvailabilityWithRatesResponses.size()));
-//        AppLogger.info(TAG, String.format("-> Response: %s", response));
-        exchange.getResponseSender().send(response);
+                    ProductRateMapping productRateMapping = productRateCache.observe(tourCmsClient, productId, () -> departures.stream()
+                            .map(AvailabilityCache.Departure::getNode)
+                            .iterator());
+                    AvailabilityAggregator aggregator = new AvailabilityAggregator(productRateMapping, tourDepartures.getCurrency(), departures.size());
+                    aggregator.acceptAll(departures);
+                    return aggregator.getResults();
+                })
+                .exceptionally(e -> {
+                    rethrowIfUnavailable(e);
+                    AppLogger.error(TAG, String.format("Couldn't get departures of %s from %s to %s", productId, from, to), e);
+                    return new ArrayList<>();
+                })
+                .thenApply(productAvailabilityWithRatesResponses -> {
+                    AppLogger.info(TAG, String.format("-> Response: %s items", productAvailabilityWithRatesResponses.size()));
+                    return productAvailabilityWithRatesResponses;
+                });
     }
 
     public void createReservation(HttpServerExchange exchange) {
@@ -670,7 +597,7 @@ public class RestService {
         AppLogger.info(TAG, String.format("- Request: %s", requestJson));
 
         Configuration configuration = Configuration.fromRestParameters(request.getParameters());
-        TourCmsClient tourCmsClient = new TourCmsClient(configuration.marketplaceId, configuration.channelId, configuration.getTourcmsPrivateKey());
+        TourCmsClient tourCmsClient = TourCmsClientRegistry.get(configuration);
 
         // Define response
         ReservationResponse response = new ReservationResponse();
@@ -700,9 +627,9 @@ public class RestService {
         try {
             // Step 1. Check tour available
             AppLogger.info(TAG, String.format("TourCMS - tourAvailableResponse %s", tourAvailableParams));
-            String tourAvailableResponse = tourCmsClient.checkTourAvailability(tourAvailableParams);
-            // AppLogger.info(TAG, String.format("TourCMS - tourAvailableResponse %s - JSON: %s", tourAvailableParams, Mapping.MAPPER.writeValueAsString(Mapping.MAPPER.readTree(tourAvailableResponse))));
-            JsonNode components = Mapping.MAPPER.readTree(tourAvailableResponse).path("available_components").path("component");
+            JsonNode tourAvailableNode = tourCmsClient.checkTourAvailability(tourAvailableParams);
+            // AppLogger.info(TAG, String.format("TourCMS - tourAvailableResponse %s - JSON: %s", tourAvailableParams, tourAvailableNode));
+            JsonNode components = tourAvailableNode.path("available_components").path("component");
             if (components.isMissingNode() || !components.elements().hasNext()) {
                 AppLogger.warn(TAG, "Components is missing OR do not has next!");
                 successfulReservation.setReservationConfirmationCode(null);
@@ -754,8 +681,8 @@ public class RestService {
             TourCMSCustomers customers = new TourCMSCustomers();
             customers.setCustomerList(Collections.singletonList(customer));
             tourCMSBooking.setCustomers(customers);
-            String temporaryBookingResponse = tourCmsClient.createTemporaryBooking(tourCMSBooking);
-            JsonNode bookingNode = Mapping.MAPPER.readTree(temporaryBookingResponse).path("booking");
+            JsonNode temporaryBookingNode = tourCmsClient.createTemporaryBooking(tourCMSBooking);
+            JsonNode bookingNode = temporaryBookingNode.path("booking");
             if (bookingNode.isMissingNode() || !bookingNode.elements().hasNext()) {
                 AppLogger.warn(TAG, "Booking is missing OR do not has next!");
                 successfulReservation.setReservationConfirmationCode(null);
@@ -775,7 +702,7 @@ public class RestService {
                 return;
             }
 
-            String leadCustomerId = Mapping.MAPPER.readTree(temporaryBookingResponse).path("booking").path("lead_customer_id").asText();
+            String leadCustomerId = bookingNode.path("lead_customer_id").asText();
 
             BookingCustomerRepository.insertCustomer(bookingId, leadCustomerId);
 
@@ -803,9 +730,10 @@ public class RestService {
         AppLogger.info(TAG, String.format("- Request: %s", requestJson));
 
         Configuration configuration = Configuration.fromRestParameters(request.getParameters());
-        TourCmsClient tourCmsClient = new TourCmsClient(configuration.marketplaceId, configuration.channelId, configuration.getTourcmsPrivateKey());
+        TourCmsClient tourCmsClient = TourCmsClientRegistry.get(configuration);
 
         tourCmsClient.deleteTemporaryBooking(request.getReservationConfirmationCode());
+        availabilityCache.release(tourCmsClient, request.getReservationConfirmationCode());
 
         CancelReservationResponse response = new CancelReservationResponse();
         SuccessfulReservationCancellation greatSuccess = new SuccessfulReservationCancellation();
@@ -824,7 +752,7 @@ public class RestService {
         AppLogger.info(TAG, String.format("- Request: %s", requestJson));
 
         Configuration configuration = Configuration.fromRestParameters(request.getParameters());
-        TourCmsClient tourCmsClient = new TourCmsClient(configuration.marketplaceId, configuration.channelId, configuration.getTourcmsPrivateKey());
+        TourCmsClient tourCmsClient = TourCmsClientRegistry.get(configuration);
 
         String date = String.format("%04d-%02d-%02d", request.getReservationData().getDate().getYear(), request.getReservationData().getDate().getMonth(), request.getReservationData().getDate().getDay());
         String startTime = String.format("%02d:%02d", request.getReservationData().getTime().getHour(), request.getReservationData().getTime().getMinute());
@@ -857,16 +785,17 @@ public class RestService {
                 AppLogger.error(TAG, "❌ Failed to update customer info: " + e.getMessage(), e);
             }
 
-            String commitBookingResponse = tourCmsClient.commitBooking(booking);
-            String bookingId = Mapping.MAPPER.readTree(commitBookingResponse).path("booking").path("booking_id").asText();
-            String barcodeData = Mapping.MAPPER.readTree(commitBookingResponse).path("booking").path("barcode_data").asText();
-            String voucherUrl = Mapping.MAPPER.readTree(commitBookingResponse).path("booking").path("voucher_url").asText();
+            JsonNode commitBookingResponse = tourCmsClient.commitBooking(booking);
+            String bookingId = commitBookingResponse.path("booking").path("booking_id").asText();
+            String barcodeData = commitBookingResponse.path("booking").path("barcode_data").asText();
+            String voucherUrl = commitBookingResponse.path("booking").path("voucher_url").asText();
             if (bookingId == null || bookingId.isEmpty()) {
                 AppLogger.warn(TAG, "Booking ID is NULL OR Empty!");
                 exchange.getResponseHeaders().put(CONTENT_TYPE, "application/json; charset=utf-8");
                 exchange.getResponseSender().send(new Gson().toJson(response));
                 return;
             }
+            allocateBooking(tourCmsClient, bookingId, request.getReservationData(), startTime);
 
             SuccessfulBooking successfulBooking = new SuccessfulBooking();
             successfulBooking.setBookingConfirmationCode(bookingId);
@@ -882,8 +811,8 @@ public class RestService {
             AppLogger.info(TAG, String.format("-> Return Response: %s", responseJson));
             exchange.getResponseSender().send(responseJson);
 
-            String componentName = Mapping.MAPPER.readTree(commitBookingResponse).path("booking").path("components").path("component").path("component_name").asText();
-            JsonNode tickets = Mapping.MAPPER.readTree(commitBookingResponse).path("booking").path("components").path("component").path("tickets").path("ticket");
+            String componentName = commitBookingResponse.path("booking").path("components").path("component").path("component_name").asText();
+            JsonNode tickets = commitBookingResponse.path("booking").path("components").path("component").path("tickets").path("ticket");
             List<JsonNode> ticketsNodeList = tickets.isArray() ?
                     ImmutableList.copyOf(tickets) :
                     ImmutableList.of(tickets);
@@ -1017,7 +946,7 @@ public class RestService {
         AppLogger.info(TAG, String.format("- Request: %s", requestJson));
 
         Configuration configuration = Configuration.fromRestParameters(request.getParameters());
-        TourCmsClient tourCmsClient = new TourCmsClient(configuration.marketplaceId, configuration.channelId, configuration.getTourcmsPrivateKey());
+        TourCmsClient tourCmsClient = TourCmsClientRegistry.get(configuration);
 
         // Define query
         String productId = request.getReservationData().getProductId();
@@ -1045,9 +974,9 @@ public class RestService {
 
         // Step 1. Check tour available
         AppLogger.info(TAG, String.format("TourCMS - tourAvailableResponse %s", tourAvailableParams));
-        String tourAvailableResponse = tourCmsClient.checkTourAvailability(tourAvailableParams);
-        // AppLogger.info(TAG, String.format("TourCMS - tourAvailableResponse %s - JSON: %s", tourAvailableParams, Mapping.MAPPER.writeValueAsString(Mapping.MAPPER.readTree(tourAvailableResponse))));
-        JsonNode components = Mapping.MAPPER.readTree(tourAvailableResponse).path("available_components").path("component");
+        JsonNode tourAvailableNode = tourCmsClient.checkTourAvailability(tourAvailableParams);
+        // AppLogger.info(TAG, String.format("TourCMS - tourAvailableResponse %s - JSON: %s", tourAvailableParams, tourAvailableNode));
+        JsonNode components = tourAvailableNode.path("available_components").path("component");
         if (components.isMissingNode() || !components.elements().hasNext()) {
             AppLogger.warn(TAG, "Components is missing OR do not has next!");
             throw new UnsupportedOperationException();
@@ -1089,8 +1018,8 @@ public class RestService {
         TourCMSCustomers customers = new TourCMSCustomers();
         customers.setCustomerList(Collections.singletonList(customer));
         tourCMSBooking.setCustomers(customers);
-        String temporaryBookingResponse = tourCmsClient.createTemporaryBooking(tourCMSBooking);
-        JsonNode bookingNode = Mapping.MAPPER.readTree(temporaryBookingResponse).path("booking");
+        JsonNode temporaryBookingNode = tourCmsClient.createTemporaryBooking(tourCMSBooking);
+        JsonNode bookingNode = temporaryBookingNode.path("booking");
         if (bookingNode.isMissingNode() || !bookingNode.elements().hasNext()) {
             AppLogger.warn(TAG, "Booking is missing OR do not has next!");
             throw new UnsupportedOperationException();
@@ -1111,14 +1040,15 @@ public class RestService {
         booking.setBookingId(bookingId);
         booking.setSuppressEmail(1); // Ignore send email to customer from TourCMS
 
-        String commitBookingResponse = tourCmsClient.commitBooking(booking);
-        String returnBookingId = Mapping.MAPPER.readTree(commitBookingResponse).path("booking").path("booking_id").asText();
-        String barcodeData = Mapping.MAPPER.readTree(commitBookingResponse).path("booking").path("barcode_data").asText();
-        String voucherUrl = Mapping.MAPPER.readTree(commitBookingResponse).path("booking").path("voucher_url").asText();
+        JsonNode commitBookingResponse = tourCmsClient.commitBooking(booking);
+        String returnBookingId = commitBookingResponse.path("booking").path("booking_id").asText();
+        String barcodeData = commitBookingResponse.path("booking").path("barcode_data").asText();
+        String voucherUrl = commitBookingResponse.path("booking").path("voucher_url").asText();
         if (returnBookingId == null || returnBookingId.isEmpty()) {
             AppLogger.warn(TAG, "Booking ID is NULL OR Empty!");
             throw new UnsupportedOperationException();
         }
+        allocateBooking(tourCmsClient, returnBookingId, request.getReservationData(), startTime);
 
         SuccessfulBooking successfulBooking = new SuccessfulBooking();
         successfulBooking.setBookingConfirmationCode(returnBookingId);
@@ -1134,8 +1064,8 @@ public class RestService {
         AppLogger.info(TAG, String.format("-> Response: %s", responseJson));
         exchange.getResponseSender().send(responseJson);
 
-        JsonNode tickets = Mapping.MAPPER.readTree(commitBookingResponse).path("booking").path("components").path("component").path("tickets").path("ticket");
-        String componentName = Mapping.MAPPER.readTree(commitBookingResponse).path("booking").path("components").path("component").path("component_name").asText();
+        JsonNode tickets = commitBookingResponse.path("booking").path("components").path("component").path("tickets").path("ticket");
+        String componentName = commitBookingResponse.path("booking").path("components").path("component").path("component_name").asText();
         List<JsonNode> ticketsNodeList = tickets.isArray() ?
                 ImmutableList.copyOf(tickets) :
                 ImmutableList.of(tickets);
@@ -1214,7 +1144,7 @@ public class RestService {
         AppLogger.info(TAG, String.format("- Request: %s", requestJson));
 
         Configuration configuration = Configuration.fromRestParameters(request.getParameters());
-        TourCmsClient tourCmsClient = new TourCmsClient(configuration.marketplaceId, configuration.channelId, configuration.getTourcmsPrivateKey());
+        TourCmsClient tourCmsClient = TourCmsClientRegistry.get(configuration);
 
         TourCMSBooking booking = new TourCMSBooking();
         booking.setBookingId(request.getBookingConfirmationCode());
@@ -1222,6 +1152,7 @@ public class RestService {
         booking.setCancelReason("23");
 
         tourCmsClient.cancelBooking(booking);
+        availabilityCache.release(tourCmsClient, booking.getBookingId());
 
         CancelBookingResponse response = new CancelBookingResponse();
         response.setSuccessfulCancellation(new SuccessfulCancellation());
@@ -0,0 +1,49 @@
+package io.bokun.inventory.plugin.tourcms.service;
+
+import io.bokun.inventory.plugin.tourcms.api.TourCmsClient;
+
+import java.util.Objects;
+
+/**
+ * A tour of one TourCMS channel, as cached by the services of this package.
+ */
+final class TourKey {
+
+    final String marketplaceId;
+    final String channelId;
+    final String tourId;
+
+    TourKey(String marketplaceId, String channelId, String tourId) {
+        this.marketplaceId = marketplaceId;
+        this.channelId = channelId;
+        this.tourId = tourId;
+    }
+
+    static TourKey of(TourCmsClient client, String tourId) {
+        return new TourKey(client.marketplaceId, client.channelId, tourId);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TourKey)) {
+            return false;
+        }
+        TourKey other = (TourKey) o;
+        return Objects.equals(marketplaceId, other.marketplaceId)
+                && Objects.equals(channelId, other.channelId)
+                && tourId.equals(other.tourId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(marketplaceId, channelId, tourId);
+    }
+
+    @Override
+    public String toString() {
+        return marketplaceId + ":" + channelId + ":" + tourId;
+    }
+}
@@ -1,16 +1,11 @@
 package io.bokun.inventory.plugin.tourcms.util;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ImmutableList;
 import io.bokun.inventory.plugin.api.rest.*;
-import io.bokun.inventory.plugin.tourcms.api.TourCmsClient;
 import io.bokun.inventory.plugin.tourcms.model.ProductRateMapping;
 
-import java.io.IOException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.stream.Collectors;
 import org.apache.commons.lang3.StringUtils;
@@ -45,85 +40,332 @@ public class Mapping {
         List<PricingCategory> prices = new ArrayList<>();
         for (JsonNode priceNote : arrayNode) {
             String rateId = priceNote.path("rate_id").asText();
-            String rateName = priceNote.path("rate_name").asText();
-            int minAge = !priceNote.path("agerange_min").isEmpty() ? priceNote.path("agerange_min").asInt() : 0;
-            int maxAge = !priceNote.path("agerange_max").isEmpty() ? priceNote.path("agerange_max").asInt() : 0;
-
             if (StringUtils.isNotBlank(rateId)
                 && prices.stream()
                          .noneMatch(p -> p.getId()
                                           .equals(rateId))) {
-                PricingCategory pricesCategory = new PricingCategory();
-                pricesCategory.setId(rateId);
-                pricesCategory.setLabel(rateName);
-                pricesCategory.setMinAge(minAge);
-                pricesCategory.setMaxAge(maxAge);
-                prices.add(pricesCategory);
+                prices.add(mapPricingCategory(priceNote));
             }
         }
 
         return prices;
     }
 
-    public static List<BasicProductInfo> mapProductsList(TourCmsClient tourCmsClient, JsonNode node) {
-        List<BasicProductInfo> products = new ArrayList<>();
-        JsonNode productsList = node.get("tour");
+    /**
+     * @param priceNote a {@code main_price} or {@code extra_rates/rate} node of a departure
+     */
+    public static PricingCategory mapPricingCategory(JsonNode priceNote) {
+        int minAge = !priceNote.path("agerange_min").isEmpty() ? priceNote.path("agerange_min").asInt() : 0;
+        int maxAge = !priceNote.path("agerange_max").isEmpty() ? priceNote.path("agerange_max").asInt() : 0;
+
+        PricingCategory pricesCategory = new PricingCategory();
+        pricesCategory.setId(priceNote.path("rate_id").asText());
+        pricesCategory.setLabel(priceNote.path("rate_name").asText());
+        pricesCategory.setMinAge(minAge);
+        pricesCategory.setMaxAge(maxAge);
+        return pricesCategory;
+    }
 
-        if (productsList == null || productsList.isEmpty()) {
-            return products;
-        }
+    /**
+     * @return the main price followed by the extra rates of a departure
+     */
+    public static List<JsonNode> priceNodes(JsonNode departure) {
+        JsonNode mainPriceNode = departure.path("main_price");
+        JsonNode extraPriceNode = departure.path("extra_rates").path("rate");
+
+        List<JsonNode> mainPriceNodeArray = mainPriceNode.isArray() ?
+                new ArrayList<>(ImmutableList.copyOf(mainPriceNode)) :
+                new ArrayList<>(ImmutableList.of(mainPriceNode));
+        List<JsonNode> extraPriceNodeArray = extraPriceNode.isArray() ?
+                ImmutableList.copyOf(extraPriceNode) :
+                ImmutableList.of(extraPriceNode);
+
+        mainPriceNodeArray.addAll(extraPriceNodeArray);
+        return mainPriceNodeArray;
+    }
 
-        List<JsonNode> productNodes = productsList.isArray() ?
-                ImmutableList.copyOf(productsList) :
-                ImmutableList.of(productsList);
+    /**
+     * @return spaces left on a departure; -1 if its {@code spaces_remaining} is blank or not a number
+     */
+    public static int spacesRemaining(JsonNode departure) {
+        String spacesRemaining = departure.path("spaces_remaining").asText();
+        return spacesRemaining.matches("\\d{1,9}") ? Integer.parseInt(spacesRemaining) : -1;
+    }
 
-        for (JsonNode productNode : productNodes) {
-            BasicProductInfo basicProductInfo = new BasicProductInfo();
-            basicProductInfo.setId(productNode.path("tour_id").asText());
-            basicProductInfo.setName(productNode.path("tour_name").asText());
-            basicProductInfo.setDescription(productNode.path("shortdesc").asText());
+    /**
+     * @return whether a departure can be booked; one without a status can't
+     */
+    public static boolean isOpen(JsonNode departure) {
+        return "OPEN".equals(departure.path("status").asText());
+    }
 
-            try {
-                Map<String, Object> departuresParams = new HashMap<>();
-                departuresParams.put("id", basicProductInfo.getId());
-                departuresParams.put("per_page", 30);
-                String departuresResponse = tourCmsClient.getTourDepartures(departuresParams);
-                // AppLogger.info(TAG, String.format("TourCMS - getTourDepartures %s JSON: %s", departuresParams, Mapping.MAPPER.writeValueAsString(Mapping.MAPPER.readTree(departuresResponse))));
-                JsonNode departuresNode = Mapping.MAPPER.readTree(departuresResponse);
-                JsonNode tourDepartureNode = departuresNode.path("tour").path("dates_and_prices").path("departure");
-                List<JsonNode> tourDepartureNodes = tourDepartureNode.isArray() ?
-                        ImmutableList.copyOf(tourDepartureNode) :
-                        ImmutableList.of(tourDepartureNode);
-
-                if (!tourDepartureNodes.isEmpty()) {
-                    for (JsonNode departure : tourDepartureNodes) {
-                        JsonNode mainPriceNode = departure.path("main_price");
-                        JsonNode extraPriceNode = departure.path("extra_rates").path("rate");
-                        List<JsonNode> mainPriceNodeArray = mainPriceNode.isArray() ?
-                                new ArrayList<>(ImmutableList.copyOf(mainPriceNode)) :
-                                new ArrayList<>(ImmutableList.of(mainPriceNode));
-                        List<JsonNode> extraPriceNodeArray = extraPriceNode.isArray() ?
-                                ImmutableList.copyOf(extraPriceNode) :
-                                ImmutableList.of(extraPriceNode);
-                        mainPriceNodeArray.addAll(extraPriceNodeArray);
-                        basicProductInfo.setPricingCategories(parsePriceCategoryFromNodeList(mainPriceNodeArray));
+    /**
+     * @return the product of a {@code /c/tours/search.xml} tour node, without pricing categories
+     */
+    public static BasicProductInfo mapBasicProductInfo(JsonNode productNode) {
+        BasicProductInfo basicProductInfo = new BasicProductInfo();
+        basicProductInfo.setId(productNode.path("tour_id").asText());
+        basicProductInfo.setName(productNode.path("tour_name").asText());
+        basicProductInfo.setDescription(productNode.path("shortdesc").asText());
+        basicProductInfo.setCities(ImmutableList.of(productNode.path("location").asText()));
+        basicProductInfo.setCountries(ImmutableList.of(productNode.path("country").asText()));
+        return basicProductInfo;
+    }
+
+    /**
+     * @return a single pricing category made of the tour's {@code from_price}, for when its departures are unknown
+     */
+    public static List<PricingCategory> mapFromPriceCategory(JsonNode productNode) {
+        PricingCategory fromPrice = new PricingCategory();
+        fromPrice.setId(productNode.path("tour_id").asText() + "_" + productNode.path("from_price").asText());
+        fromPrice.setLabel(productNode.path("from_price_display").asText());
+        return ImmutableList.of(fromPrice);
+    }
+
+    public static ProductDescription mapProductDescription(JsonNode productNode, JsonNode tourDeparturesNode) {
+        return mapProductDescription(productNode, Mapping.parseProductRates(tourDeparturesNode));
+    }
+
+    public static ProductDescription mapProductDescription(JsonNode productNode, ProductRateMapping productRateMapping) {
+        // Copied, the tour's own start time is added below
+        List<String> startTimes = new ArrayList<>(productRateMapping.getStartTimes());
+
+        JsonNode product = productNode.get("tour");
+
+        ProductDescription description = new ProductDescription();
+        // 1. id
+        description.setId(product.get("tour_id").asText());
+        // 2. name
+        description.setName(product.get("tour_name").asText());
+        // 3. description
+        description.setDescription(product.get("shortdesc").asText());
+
+        // 3. pricingCategories
+        description.setPricingCategories(productRateMapping.getPriceCategories());
+        // 4. rates
+        description.setRates(productRateMapping.getRates());
+        // 5. bookingType
+        if (!startTimes.isEmpty()) {
+            description.setBookingType(BookingType.DATE_AND_TIME);
+        } else {
+            JsonNode dateType = product.path("new_booking").path("date_selection").path("date_type");
+            BookingType bookingType = BookingType.DATE;
+            if (dateType.isTextual()) {
+                try {
+                    bookingType = BookingType.valueOf(dateType.asText());
+                    AppLogger.info(TAG, "Mapped booking type to: " + bookingType);
+                } catch (IllegalArgumentException e) {
+                    AppLogger.warn(TAG, "Unknown booking type found in XML: " + dateType.asText() + ". Defaulting to DATE.");
+                }
+            } else {
+                AppLogger.warn(TAG, "date_type is not textual or missing. Defaulting to DATE.");
+            }
+            description.setBookingType(bookingType);
+        }
+
+        // 6. dropoffAvailable
+        JsonNode pickupOnRequest = product.path("pickup_on_request");
+        JsonNode pickupPoints = product.path("pickup_points");
+        boolean dropoffAvailable = pickupOnRequest.asInt() == 1 && pickupPoints.isArray() && !pickupPoints.isEmpty();
+        description.setDropoffAvailable(dropoffAvailable);
+
+        // 7. dropoffPlaces
+        if (dropoffAvailable) {
+            List<PickupDropoffPlace> pickupDropoffPlaces = new ArrayList<>();
+
+            for (JsonNode point : pickupPoints) {
+                PickupDropoffPlace place = new PickupDropoffPlace();
+                Address address = new Address();
+
+                // Map thông tin từ XML sang Address
+                address.setAddressLine1(point.path("address1").asText());
+                address.setAddressLine2(point.path("address2").asText());
+                address.setPostalCode(point.path("postcode").asText());
+
+                // Lấy thông tin city và countryCode từ productNode (XML response)
+                String city = product.path("location").asText(); // "location" trong XML là tên thành phố
+                String countryCode = product.path("country").asText(); // "country" trong XML là mã quốc gia
+
+                address.setCity(city);
+                address.setCountryCode(countryCode);
+
+                // Lấy geocode từ XML response
+                String geocode = point.path("geocode").asText();
+                if (!geocode.isEmpty()) {
+                    String[] geoParts = geocode.split(",");
+                    if (geoParts.length == 2) {
+                        GeoPoint geoPoint = new GeoPoint();
+                        geoPoint.setLatitude(Double.parseDouble(geoParts[0]));
+                        geoPoint.setLongitude(Double.parseDouble(geoParts[1]));
+                        address.setGeoPoint(geoPoint);
                     }
                 }
-            } catch (IOException | NoSuchAlgorithmException | InvalidKeyException e) {
-                AppLogger.error(TAG, String.format("Failed to get product id: %s", basicProductInfo.getId()), e);
-                PricingCategory fromPrice = new PricingCategory();
-                fromPrice.setId(productNode.path("tour_id").asText() + "_" + productNode.path("from_price").asText());
-                fromPrice.setLabel(productNode.path("from_price_display").asText());
-                basicProductInfo.setPricingCategories(ImmutableList.of(fromPrice));
+
+                // Set title
+                place.setTitle(point.path("pickup_name").asText());
+                place.setAddress(address);
+
+                // Add vào list
+                pickupDropoffPlaces.add(place);
+            }
+
+            description.setDropoffPlaces(pickupDropoffPlaces);
+            description.setCustomDropoffPlaceAllowed(false);
+        }
+
+        // 8. productCategory
+        description.setProductCategory(ProductCategory.ACTIVITIES);
+
+        // 9. ticketSupport
+        // Accommodation → TICKETS_NOT_REQUIRED
+        // Activities → TICKET_PER_PERSON
+        // Car Rentals → TICKETS_NOT_REQUIRED
+        // Transport → TICKET_PER_BOOKING
+        List<TicketSupport> ticketSupportList = new ArrayList<>();
+        ticketSupportList.add(TicketSupport.TICKET_PER_PERSON);
+        description.setTicketSupport(ticketSupportList);
+
+        // 10. countries
+        description.setCountries(ImmutableList.of(product.get("country").asText()));
+
+        // 11. cities
+        description.setCities(ImmutableList.of(product.get("location").asText()));
+
+        // 12. startTimes
+        if (description.getBookingType().equals(BookingType.DATE_AND_TIME)) {
+            JsonNode startTimeNode = product.path("start_time");
+            if (startTimeNode.isTextual() && startTimeNode.asText().contains(":") && !startTimes.contains(startTimeNode.asText())) {
+                startTimes.add(startTimeNode.asText());
+            }
+            startTimes.sort((time1, time2) -> {
+                String[] parts1 = time1.split(":");
+                String[] parts2 = time2.split(":");
+
+                int hour1 = Integer.parseInt(parts1[0]);
+                int minute1 = Integer.parseInt(parts1[1]);
+                int hour2 = Integer.parseInt(parts2[0]);
+                int minute2 = Integer.parseInt(parts2[1]);
+
+                if (hour1 == hour2) {
+                    return Integer.compare(minute1, minute2);
+                }
+                return Integer.compare(hour1, hour2);
+            });
+            List<Time> startTimesList = new ArrayList<>();
+            for (String startTime : startTimes) {
+                String[] timeParts = startTime.split(":");
+                int hour = Integer.parseInt(timeParts[0]);
+                int minute = Integer.parseInt(timeParts[1]);
+                Time time = new Time();
+                time.setHour(hour);
+                time.setMinute(minute);
+                startTimesList.add(time);
             }
+            description.setStartTimes(startTimesList);
+        }
 
-            basicProductInfo.setCities(ImmutableList.of(productNode.path("location").asText()));
-            basicProductInfo.setCountries(ImmutableList.of(productNode.path("country").asText()));
+        // 13. ticketType
+        JsonNode deliveryFormat = product.path("delivery_formats").path("delivery_format");
+        TicketType ticketType = TicketType.QR_CODE;
+        if (!deliveryFormat.isEmpty()) {
+            try {
+                ticketType = TicketType.valueOf(deliveryFormat.asText());
+            } catch (IllegalArgumentException e) {
+                AppLogger.error(TAG, String.format("Couldn't parse ticketType: %s", deliveryFormat.asText()), e);
+            }
+        }
+        description.setTicketType(ticketType);
+
+        // 14. meetingType
+        MeetingType meetingType;
+        boolean hasPickupPoints = product.path("pickup_points").isArray() && !product.path("pickup_points").isEmpty();
+        boolean hasPickupOnRequest = product.path("pickup_on_request").asInt(0) == 1;
+        if (hasPickupPoints) {
+            if (hasPickupOnRequest) {
+                meetingType = MeetingType.MEET_ON_LOCATION_OR_PICK_UP;
+            } else {
+                meetingType = MeetingType.PICK_UP;
+            }
+        } else {
+            meetingType = MeetingType.MEET_ON_LOCATION;
+        }
+        description.setMeetingType(meetingType);
 
-            products.add(basicProductInfo);
+        // 15. customPickupPlaceAllowed
+        boolean customPickupPlaceAllowed = false;
+        // Nếu meetingType là MEET_ON_LOCATION_OR_PICK_UP hoặc PICK_UP thì cần check
+        if (meetingType == MeetingType.MEET_ON_LOCATION_OR_PICK_UP || meetingType == MeetingType.PICK_UP) {
+            customPickupPlaceAllowed = hasPickupOnRequest;
+        }
+        description.setCustomPickupPlaceAllowed(customPickupPlaceAllowed);
+
+        // 16. pickupMinutesBefore
+        Integer pickupMinutesBefore = null;
+        // Chỉ lấy giá trị nếu là MEET_ON_LOCATION_OR_PICK_UP hoặc PICK_UP
+        if (meetingType == MeetingType.MEET_ON_LOCATION_OR_PICK_UP || meetingType == MeetingType.PICK_UP) {
+            JsonNode pickupNode = product.path("pickup_minutes_before");
+            if (pickupNode.isInt()) {
+                pickupMinutesBefore = pickupNode.asInt();
+            }
+        }
+        description.setPickupMinutesBefore(pickupMinutesBefore);
+
+        // 17. pickupPlaces
+        List<PickupDropoffPlace> pickupDropoffPlaces = new ArrayList<>();
+        if (meetingType == MeetingType.MEET_ON_LOCATION_OR_PICK_UP || meetingType == MeetingType.PICK_UP) {
+            JsonNode pickupPointsNode = product.path("pickup_points");
+            if (pickupPointsNode.isArray()) {
+                for (JsonNode point : pickupPointsNode) {
+                    PickupDropoffPlace place = new PickupDropoffPlace();
+                    Address address = new Address();
+
+                    // Map các trường thông tin
+                    place.setTitle(point.path("pickup_name").asText());
+
+                    address.setAddressLine1(point.path("address1").asText());
+                    address.setAddressLine2(point.path("address2").asText());
+                    address.setCity(product.path("location").asText());
+                    address.setCountryCode(product.path("country").asText());
+
+                    // Geolocation nếu có
+                    String geocode = point.path("geocode").asText();
+                    if (geocode.contains(",")) {
+                        String[] coordinates = geocode.split(",");
+                        GeoPoint geoPoint = new GeoPoint();
+                        geoPoint.setLatitude(Double.parseDouble(coordinates[0]));
+                        geoPoint.setLongitude(Double.parseDouble(coordinates[1]));
+                        address.setGeoPoint(geoPoint);
+                    }
+
+                    place.setAddress(address);
+                    pickupDropoffPlaces.add(place);
+                }
+            }
+        }
+        description.setPickupPlaces(pickupDropoffPlaces);
+
+        // 18. Extra
+        List<Extra> extras = new ArrayList<>();
+        JsonNode alternativeTours = product.path("options").path("option");
+        if (!alternativeTours.isEmpty()) {
+            List<JsonNode> alternativeToursList = alternativeTours.isArray() ?
+                    ImmutableList.copyOf(alternativeTours) :
+                    ImmutableList.of(alternativeTours);
+            for (JsonNode item : alternativeToursList) {
+                Extra extra = new Extra();
+                extra.setId(item.get("option_id").asText());
+                extra.setTitle(item.get("option_name").asText());
+                extra.setDescription(item.get("short_description").asText());
+                extra.setOptional(true);                  // Giả định là tất cả đều optional
+                extra.setMaxPerBooking(1);                // Giả định chỉ đặt 1 lần mỗi booking
+                extra.setLimitByPax(false);               // Không giới hạn theo số người
+                extra.setIncreasesCapacity(false);        // Không tăng số lượng người cho phép
+                extras.add(extra);
+            }
         }
+        description.setExtras(ImmutableList.copyOf(extras));
 
-        return products;
+        return description;
     }
 
     public static RateWithPrice mapRate(ProductRateMapping productRateMapping, String supplierNode, JsonNode pricingCategoryNode, String currency, boolean isMainRate) {
@@ -196,26 +438,21 @@ public class Mapping {
         }
     }
 
-    public static ProductRateMapping getProductRates(String id, TourCmsClient tourCmsClient) throws IOException, NoSuchAlgorithmException, InvalidKeyException {
-        Map<String, Object> departuresParams = new HashMap<>();
-        departuresParams.put("id", id);
-        departuresParams.put("per_page", 30);
-        String tourDeparturesResponse = tourCmsClient.getTourDepartures(departuresParams);
-        return parseProductRates(tourDeparturesResponse);
-    }
-
-    public static ProductRateMapping parseProductRates(String tourDeparturesResponse) throws JsonProcessingException {
-        List<Rate> rates = new ArrayList<>();
-        List<String> startTimes = new ArrayList<>();
-        List<PricingCategory> priceCategories = new ArrayList<>();
-
-        JsonNode tourDeparturesNode = Mapping.MAPPER.readTree(tourDeparturesResponse);
+    public static ProductRateMapping parseProductRates(JsonNode tourDeparturesNode) {
         JsonNode tourDepartures = tourDeparturesNode.path("tour").path("dates_and_prices").path("departure");
 
         List<JsonNode> tourDeparturesList = tourDepartures.isArray() ?
                 ImmutableList.copyOf(tourDepartures) :
                 ImmutableList.of(tourDepartures);
 
+        return parseProductRates(tourDeparturesList);
+    }
+
+    public static ProductRateMapping parseProductRates(List<JsonNode> tourDeparturesList) {
+        List<Rate> rates = new ArrayList<>();
+        List<String> startTimes = new ArrayList<>();
+        List<PricingCategory> priceCategories = new ArrayList<>();
+
         if (!tourDeparturesList.isEmpty()) {
             for (JsonNode departure : tourDeparturesList) {
                 String note = departure.path("note").asText();
@@ -232,18 +469,7 @@ public class Mapping {
                     startTimes.add(startTime);
                 }
 
-                JsonNode mainPriceNode = departure.path("main_price");
-                JsonNode extraPriceNode = departure.path("extra_rates").path("rate");
-
-                List<JsonNode> mainPriceNodeArray = mainPriceNode.isArray() ?
-                        new ArrayList<>(ImmutableList.copyOf(mainPriceNode)) :
-                        new ArrayList<>(ImmutableList.of(mainPriceNode));
-                List<JsonNode> extraPriceNodeArray = extraPriceNode.isArray() ?
-                        ImmutableList.copyOf(extraPriceNode) :
-                        ImmutableList.of(extraPriceNode);
-
-                mainPriceNodeArray.addAll(extraPriceNodeArray);
-                priceCategories = Mapping.parsePriceCategoryFromNodeList(mainPriceNodeArray);
+                priceCategories = Mapping.parsePriceCategoryFromNodeList(priceNodes(departure));
             }
         }
 